@@ -0,0 +1,237 @@
+// -*- coding: utf-8 -*-
+// package ebbertLab.expressionMatrixProcessor;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/*
+ * Reads the chunked binary matrices written by BinaryMatrixWriter (see there
+ * for the layout). The header (gene and cell IDs) and the chunk offsets are
+ * read when the file is opened; chunks are read on demand, so loading a range
+ * of cells only touches the chunks that contain them.
+ *
+ * Also a small command-line utility:
+ *     java BinaryMatrixReader <file.bin>                 print a summary
+ *     java BinaryMatrixReader <file.bin> --tsv <out.txt> write the matrix back
+ *         as tab-delimited text, identical to the
+ *         *.filtered_transposed_expression_matrix.txt written alongside it
+ */
+public class BinaryMatrixReader implements Closeable {
+
+    private final FileChannel channel;
+    private final int cellCount;
+    private final int geneCount;
+    private final int chunkCells;
+    private final String[] geneIDs;
+    private final String[] cellIDs;
+    private final long[] chunkOffsets;
+    private final long nonzeros;
+
+    public BinaryMatrixReader(File file) throws IOException {
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), 1 << 16));
+            if (in.readInt() != BinaryMatrixWriter.MAGIC) {
+                throw new IOException(file.getName() + " is not a binary expression matrix");
+            }
+            int version = in.readInt();
+            if (version != BinaryMatrixWriter.VERSION) {
+                throw new IOException(file.getName() + " has unsupported binary matrix version " + version);
+            }
+            cellCount = in.readInt();
+            geneCount = in.readInt();
+            chunkCells = in.readInt();
+            geneIDs = new String[geneCount];
+            for (int g = 0; g < geneCount; g++) {
+                geneIDs[g] = in.readUTF();
+            }
+            cellIDs = new String[cellCount];
+            for (int c = 0; c < cellCount; c++) {
+                cellIDs[c] = in.readUTF();
+            }
+
+            ByteBuffer footer = read(channel.size() - BinaryMatrixWriter.FOOTER_BYTES, BinaryMatrixWriter.FOOTER_BYTES);
+            int chunkCount = footer.getInt();
+            nonzeros = footer.getLong();
+            long tableOffset = footer.getLong();
+            if (footer.getInt() != BinaryMatrixWriter.MAGIC) {
+                throw new IOException(file.getName() + " is truncated (missing footer)");
+            }
+            ByteBuffer table = read(tableOffset, chunkCount * Long.BYTES);
+            chunkOffsets = new long[chunkCount];
+            for (int k = 0; k < chunkCount; k++) {
+                chunkOffsets[k] = table.getLong();
+            }
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public int cellCount() {
+        return cellCount;
+    }
+
+    public int geneCount() {
+        return geneCount;
+    }
+
+    public long nonzeros() {
+        return nonzeros;
+    }
+
+    public int chunkCount() {
+        return chunkOffsets.length;
+    }
+
+    public String[] geneIDs() {
+        return geneIDs;
+    }
+
+    public String[] cellIDs() {
+        return cellIDs;
+    }
+
+    /*
+     * Cells [from, to) as a (to - from) x geneCount sparse matrix.
+     */
+    public SparseMatrix readCells(int from, int to) throws IOException {
+        if (from < 0 || to > cellCount || from > to) {
+            throw new IndexOutOfBoundsException("Cells [" + from + ", " + to + ") of " + cellCount);
+        }
+        SparseMatrix.Builder builder = new SparseMatrix.Builder(geneCount);
+        int[] indices = new int[16];
+        double[] values = new double[16];
+        for (int k = from / chunkCells; k < chunkOffsets.length && k * chunkCells < to; k++) {
+            Chunk chunk = readChunk(k);
+            int first = Math.max(from - k * chunkCells, 0);
+            int last = Math.min(to - k * chunkCells, chunk.cells);
+            for (int c = first; c < last; c++) {
+                int size = chunk.rowPointers[c + 1] - chunk.rowPointers[c];
+                if (size > indices.length) {
+                    indices = new int[size];
+                    values = new double[size];
+                }
+                for (int i = 0; i < size; i++) {
+                    indices[i] = chunk.geneIndices[chunk.rowPointers[c] + i];
+                    values[i] = chunk.values[chunk.rowPointers[c] + i] / 100.0;
+                }
+                builder.addRow(indices, values, size);
+            }
+        }
+        return builder.build();
+    }
+
+    /*
+     * Values of one gene across all cells.
+     */
+    public double[] readGene(int gene) throws IOException {
+        double[] column = new double[cellCount];
+        for (int k = 0; k < chunkOffsets.length; k++) {
+            Chunk chunk = readChunk(k);
+            for (int c = 0; c < chunk.cells; c++) {
+                int lo = chunk.rowPointers[c];
+                int hi = chunk.rowPointers[c + 1] - 1;
+                while (lo <= hi) {
+                    int mid = (lo + hi) >>> 1;
+                    if (chunk.geneIndices[mid] < gene) {
+                        lo = mid + 1;
+                    } else if (chunk.geneIndices[mid] > gene) {
+                        hi = mid - 1;
+                    } else {
+                        column[k * chunkCells + c] = chunk.values[mid] / 100.0;
+                        break;
+                    }
+                }
+            }
+        }
+        return column;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private Chunk readChunk(int k) throws IOException {
+        long offset = chunkOffsets[k];
+        int sizesBytes = 3 * Integer.BYTES;
+        ByteBuffer sizes = read(offset, sizesBytes);
+        Chunk chunk = new Chunk();
+        chunk.cells = sizes.getInt();
+        int size = sizes.getInt();
+        int valueBytes = sizes.getInt();
+
+        ByteBuffer body = read(offset + sizesBytes, (chunk.cells + 1 + size) * Integer.BYTES + size * valueBytes);
+        chunk.rowPointers = new int[chunk.cells + 1];
+        chunk.geneIndices = new int[size];
+        chunk.values = new long[size];
+        IntBuffer ints = body.asIntBuffer();
+        ints.get(chunk.rowPointers).get(chunk.geneIndices);
+        if (valueBytes == Long.BYTES) {
+            body.position(ints.position() * Integer.BYTES);
+            body.asLongBuffer().get(chunk.values);
+        } else {
+            for (int i = 0; i < size; i++) {
+                chunk.values[i] = ints.get();
+            }
+        }
+        return chunk;
+    }
+
+    private ByteBuffer read(long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Unexpected end of binary matrix");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /*
+     * One chunk of cells in compressed sparse row form.
+     */
+    private static class Chunk {
+        int cells;
+        int[] rowPointers;
+        int[] geneIndices;
+        long[] values;      // Hundredths
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1 && !(args.length == 3 && args[1].equals("--tsv"))) {
+            System.out.println("Usage: java BinaryMatrixReader <file.bin> [--tsv <out.txt>]");
+            System.exit(1);
+        }
+
+        try (BinaryMatrixReader reader = new BinaryMatrixReader(new File(args[0]))) {
+            System.out.println("📦 " + args[0] + ": " + reader.cellCount() + " cells x " + reader.geneCount() + " genes, "
+                    + reader.nonzeros() + " nonzero values in " + reader.chunkCount() + " chunks");
+            if (args.length == 1) {
+                return;
+            }
+
+            try (MatrixTextWriter writer = new MatrixTextWriter(new FileOutputStream(args[2]))) {
+                writer.write("CellID");
+                for (String gene : reader.geneIDs()) {
+                    writer.writeTab();
+                    writer.write(gene);
+                }
+                writer.newLine();
+                for (int c0 = 0; c0 < reader.cellCount(); c0 += reader.chunkCells) {
+                    int c1 = Math.min(c0 + reader.chunkCells, reader.cellCount());
+                    String[] labels = Arrays.copyOfRange(reader.cellIDs(), c0, c1);
+                    ExpressionMatrixProcessor.writeDenseRows(writer, reader.readCells(c0, c1), labels, "");
+                }
+            }
+            System.out.println("✅ Wrote " + args[2]);
+        }
+    }
+}
@@ -0,0 +1,211 @@
+// -*- coding: utf-8 -*-
+// package ebbertLab.expressionMatrixProcessor;
+
+import java.io.*;
+import java.util.*;
+
+/*
+ * Writes a transposed (cell x gene) matrix in a compact, chunked binary
+ * layout, as an alternative to the tab-delimited
+ * *.filtered_transposed_expression_matrix.txt. Cells are added one at a time
+ * in output order and grouped into chunks of chunkCells cells; each chunk
+ * stores only the nonzero entries of its cells, so a reader can load any
+ * range of cells by seeking to the chunks it needs.
+ *
+ * All numbers are big-endian (DataOutputStream), strings are
+ * DataOutputStream.writeUTF() strings (2-byte length + modified UTF-8).
+ * Values are stored in hundredths, which is exact because the filtered
+ * matrices are rounded to two decimals: as ints, or as longs in chunks that
+ * hold a value too large for an int.
+ *
+ *     Header
+ *       int    MAGIC ("EMXB")
+ *       int    VERSION
+ *       int    cellCount
+ *       int    geneCount
+ *       int    chunkCells          cells per chunk (the last may be shorter)
+ *       UTF    geneCount gene IDs   same strings as the TSV header; "col0|col1"
+ *                                   for two-column (isoform) input
+ *       UTF    cellCount cell IDs
+ *     Chunks, one per chunkCells cells
+ *       int    cells in the chunk
+ *       int    nnz
+ *       int    valueBytes          4 or 8
+ *       int    cells + 1 row pointers into the entries below (from 0)
+ *       int    nnz gene indices (ascending within a cell)
+ *       int/long nnz values in hundredths, valueBytes each
+ *     Offsets table
+ *       long   chunkCount byte offsets, one per chunk
+ *     Footer (FOOTER_BYTES)
+ *       int    chunkCount
+ *       long   total nonzeros
+ *       long   byte offset of the offsets table
+ *       int    MAGIC
+ *
+ * BinaryMatrixReader reads the format back.
+ */
+public class BinaryMatrixWriter implements BlockedTransposer.CellSink, Closeable {
+
+    static final int MAGIC = 0x454D5842;    // "EMXB"
+    static final int VERSION = 1;
+    static final int FOOTER_BYTES = 24;
+    static final int DEFAULT_CHUNK_CELLS = 256;
+
+    private final DataOutputStream out;
+    private final int cellCount;
+    private final int geneCount;
+    private final int chunkCells;
+    private long position;      // Bytes written so far
+
+    // Cells of the chunk being filled
+    private int cellsInChunk;
+    private int entriesInChunk;
+    private int[] rowPointers;
+    private int[] geneIndices = new int[1024];
+    private long[] values = new long[1024];
+
+    private final List<Long> chunkOffsets = new ArrayList<>();
+    private int cellsWritten;
+    private long nonzeros;
+
+    public BinaryMatrixWriter(File file, String[] cellIDs, String[] geneIDs) throws IOException {
+        this(file, cellIDs, geneIDs, DEFAULT_CHUNK_CELLS);
+    }
+
+    public BinaryMatrixWriter(File file, String[] cellIDs, String[] geneIDs, int chunkCells) throws IOException {
+        this.cellCount = cellIDs.length;
+        this.geneCount = geneIDs.length;
+        this.chunkCells = Math.max(1, chunkCells);
+        this.rowPointers = new int[this.chunkCells + 1];
+
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        DataOutputStream headerOut = new DataOutputStream(header);
+        headerOut.writeInt(MAGIC);
+        headerOut.writeInt(VERSION);
+        headerOut.writeInt(cellCount);
+        headerOut.writeInt(geneCount);
+        headerOut.writeInt(this.chunkCells);
+        for (String gene : geneIDs) {
+            headerOut.writeUTF(gene);
+        }
+        for (String cell : cellIDs) {
+            headerOut.writeUTF(cell);
+        }
+        headerOut.flush();
+
+        this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+        header.writeTo(out);
+        position = header.size();
+    }
+
+    /*
+     * Add the next cell from a dense run of hundredths (one per gene), as
+     * produced by BlockedTransposer. Zeros are skipped.
+     */
+    @Override
+    public void addCell(int column, long[] hundredths, int offset, int count) throws IOException {
+        if (count != geneCount) {
+            throw new IOException("Binary matrix expected " + geneCount + " genes per cell but got " + count);
+        }
+        for (int g = 0; g < count; g++) {
+            if (hundredths[offset + g] != 0) {
+                addEntry(g, hundredths[offset + g]);
+            }
+        }
+        endCell();
+    }
+
+    /*
+     * Add every row of a cell x gene sparse matrix as the next cells. Values
+     * must already be rounded to two decimals.
+     */
+    public void addRows(SparseMatrix cellsByGene) throws IOException {
+        int[] indices = cellsByGene.columnIndices();
+        double[] matrixValues = cellsByGene.values();
+        for (int r = 0; r < cellsByGene.rows(); r++) {
+            for (int i = cellsByGene.rowStart(r); i < cellsByGene.rowEnd(r); i++) {
+                long value = Math.round(matrixValues[i] * 100.0);
+                if (value != 0) {
+                    addEntry(indices[i], value);
+                }
+            }
+            endCell();
+        }
+    }
+
+    /*
+     * Flush the last chunk and write the offsets table and footer.
+     */
+    @Override
+    public void close() throws IOException {
+        if (cellsInChunk > 0) {
+            flushChunk();
+        }
+        if (cellsWritten != cellCount) {
+            out.close();
+            throw new IOException("Binary matrix expected " + cellCount + " cells but " + cellsWritten + " were added");
+        }
+        long tableOffset = position;
+        for (long offset : chunkOffsets) {
+            out.writeLong(offset);
+        }
+        out.writeInt(chunkOffsets.size());
+        out.writeLong(nonzeros);
+        out.writeLong(tableOffset);
+        out.writeInt(MAGIC);
+        out.close();
+    }
+
+    private void addEntry(int gene, long value) {
+        if (entriesInChunk == geneIndices.length) {
+            geneIndices = Arrays.copyOf(geneIndices, entriesInChunk * 2);
+            values = Arrays.copyOf(values, entriesInChunk * 2);
+        }
+        geneIndices[entriesInChunk] = gene;
+        values[entriesInChunk] = value;
+        entriesInChunk++;
+    }
+
+    private void endCell() throws IOException {
+        rowPointers[++cellsInChunk] = entriesInChunk;
+        cellsWritten++;
+        if (cellsInChunk == chunkCells) {
+            flushChunk();
+        }
+    }
+
+    private void flushChunk() throws IOException {
+        int size = entriesInChunk;
+        chunkOffsets.add(position);
+
+        int valueBytes = Integer.BYTES;
+        for (int i = 0; i < size; i++) {
+            if (values[i] > Integer.MAX_VALUE || values[i] < Integer.MIN_VALUE) {
+                valueBytes = Long.BYTES;
+                break;
+            }
+        }
+
+        out.writeInt(cellsInChunk);
+        out.writeInt(size);
+        out.writeInt(valueBytes);
+        for (int i = 0; i <= cellsInChunk; i++) {
+            out.writeInt(rowPointers[i]);
+        }
+        for (int i = 0; i < size; i++) {
+            out.writeInt(geneIndices[i]);
+        }
+        for (int i = 0; i < size; i++) {
+            if (valueBytes == Long.BYTES) {
+                out.writeLong(values[i]);
+            } else {
+                out.writeInt((int) values[i]);
+            }
+        }
+        position += 3L * Integer.BYTES + (cellsInChunk + 1L) * Integer.BYTES + (long) size * (Integer.BYTES + valueBytes);
+        nonzeros += size;
+
+        cellsInChunk = 0;
+        entriesInChunk = 0;
+    }
+}
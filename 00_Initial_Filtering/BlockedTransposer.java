@@ -0,0 +1,482 @@
+// -*- coding: utf-8 -*-
+// package ebbertLab.expressionMatrixProcessor;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/*
+ * Transposes a gene x cell matrix into cell x gene rows within a fixed memory
+ * budget.
+ *
+ * Rows (genes) are added one at a time and buffered in a tile of primitive
+ * ints holding each value in hundredths (the filtered matrices are already
+ * rounded to two decimals, so this is exact). The first value that does not
+ * fit in an int switches the tile to longs, at half the rows per tile; tiles
+ * already in the scratch file keep their int encoding. When the tile is full it is
+ * transposed in cache-sized blocks and appended to a single scratch file in
+ * cell-major order. To write the output, the engine walks the cells in blocks
+ * and, for each block, reads one contiguous run from every tile, so the merge
+ * only does large sequential reads. If all rows fit in one tile, nothing is
+ * written to disk and the transpose happens entirely in memory.
+ *
+ * Scratch I/O goes through direct (off-heap) buffers that are allocated once
+ * and reused: tiles are transposed straight into a bounded staging buffer,
+ * and the merge reads blocks into another and decodes each cell straight out
+ * of it. Heap buffers would cost a tile-sized int[] per flush and, inside
+ * FileChannel, an extra copy through a temporary direct buffer of the same
+ * size that the thread keeps cached. The tile itself is an int[] (or long[])
+ * on the heap. The tile and the staging buffer each get at most half of the
+ * memory budget, and the merge block leaves room for the values of one cell;
+ * estimatedPeakBytes() adds these up for the MemoryPlanner.
+ *
+ * This replaces the previous approach of one temporary file (and one open
+ * BufferedWriter) per cell.
+ */
+public class BlockedTransposer implements Closeable {
+
+    private static final int BLOCK = 64;            // Edge of the square blocks used for cache-friendly transposes
+    private static final int MIN_TILE_ROWS = 16;
+    private static final int STAGING_BYTES = 64 << 20;  // Direct buffer a tile is transposed into, a run of cells at a time
+
+    private final int numColumns;
+    private final long memoryBudgetBytes;
+    private final File scratchDir;
+    private final String scratchPrefix;
+
+    private int tileRows;           // Rows per tile (halved when the tile widens to longs)
+    private int[] tile;             // Row-major buffer of the tile being filled
+    private long[] wideTile;        // Replaces tile once a value does not fit in an int
+    private int rowsInTile;
+    private int totalRows;
+
+    private File scratchFile;
+    private FileChannel scratch;
+    private ByteBuffer staging;     // Off-heap, allocated on the first flush
+    private final List<ScratchTile> flushedTiles = new ArrayList<>();
+
+    public BlockedTransposer(int numColumns, long memoryBudgetBytes, File scratchDir, String scratchPrefix) {
+        this.numColumns = numColumns;
+        this.memoryBudgetBytes = memoryBudgetBytes;
+        this.scratchDir = scratchDir;
+        this.scratchPrefix = scratchPrefix;
+        this.tileRows = tileRows(numColumns, memoryBudgetBytes);
+        this.tile = new int[Math.min(tileRows, 1024) * numColumns];
+    }
+
+    /*
+     * Rows per int tile. While a tile is transposed it needs as much memory
+     * again, for its cell-major copy (in memory) or the staging buffer
+     * (flushing), so it gets half of the budget.
+     */
+    static int tileRows(int numColumns, long memoryBudgetBytes) {
+        long rowBytes = 2L * Integer.BYTES * Math.max(numColumns, 1);
+        long rows = memoryBudgetBytes / rowBytes;
+        rows = Math.min(rows, Integer.MAX_VALUE / Long.BYTES);     // One cell of a tile must fit in a ByteBuffer
+        return (int) Math.max(MIN_TILE_ROWS, Math.min(rows, Integer.MAX_VALUE / Math.max(numColumns, 1)));
+    }
+
+    /*
+     * Staging buffer for flushing a tile of tileBytes: at most STAGING_BYTES
+     * and half of the budget, but at least one cell of cellBytes.
+     */
+    static long stagingBytes(long tileBytes, long cellBytes, long memoryBudgetBytes) {
+        long limit = Math.min(STAGING_BYTES, memoryBudgetBytes / 2);
+        return Math.min(tileBytes, Math.max(limit, cellBytes));
+    }
+
+    /*
+     * Cells read per merge block, leaving room in the budget for the values
+     * of one cell (a long per row) that transpose() passes to its sink.
+     */
+    static int cellsPerBlock(int numColumns, long bytesPerCell, long totalRows, long memoryBudgetBytes) {
+        long blockBudget = memoryBudgetBytes - Long.BYTES * totalRows;
+        long cells = Math.max(1, Math.min(numColumns, blockBudget / Math.max(bytesPerCell, 1)));
+        return (int) Math.min(cells, Integer.MAX_VALUE / Math.max(bytesPerCell, 1));
+    }
+
+    /*
+     * Most memory (heap and direct) a transposer of rows x numColumns int
+     * values is expected to hold at once: the tile, with its cell-major copy
+     * or the staging buffer, or later the merge block and one cell's values.
+     */
+    static long estimatedPeakBytes(long rows, int numColumns, long memoryBudgetBytes) {
+        int tileRows = tileRows(numColumns, memoryBudgetBytes);
+        long cellValues = Long.BYTES * rows;
+        if (rows <= tileRows) {
+            long capacity = Math.min(tileRows, 1024);   // The tile grows by doubling
+            while (capacity < rows) {
+                capacity = Math.min(tileRows, 2 * capacity);
+            }
+            return Integer.BYTES * (capacity + rows) * numColumns + cellValues;
+        }
+        long tileBytes = (long) Integer.BYTES * tileRows * numColumns;
+        long flush = tileBytes + stagingBytes(tileBytes, (long) Integer.BYTES * tileRows, memoryBudgetBytes);
+        long bytesPerCell = Integer.BYTES * rows;
+        long merge = cellsPerBlock(numColumns, bytesPerCell, rows, memoryBudgetBytes) * bytesPerCell + cellValues;
+        return Math.max(flush, merge);
+    }
+
+    /*
+     * Add the next row from numColumns values in hundredths, starting at
+     * hundredths[offset].
+     */
+    public void addRow(int[] hundredths, int offset) throws IOException {
+        int row = startRow();   // May replace tile, so call it before reading the field
+        if (wideTile != null) {
+            for (int i = 0; i < numColumns; i++) {
+                wideTile[row + i] = hundredths[offset + i];
+            }
+        } else {
+            System.arraycopy(hundredths, offset, tile, row, numColumns);
+        }
+        rowsInTile++;
+        totalRows++;
+    }
+
+    /*
+     * As addRow(int[], int), for values that may not fit in an int.
+     */
+    public void addRow(long[] hundredths, int offset) throws IOException {
+        if (wideTile == null) {
+            for (int i = 0; i < numColumns; i++) {
+                if (!fitsInInt(hundredths[offset + i])) {
+                    widen();
+                    break;
+                }
+            }
+        }
+        int row = startRow();
+        if (wideTile != null) {
+            System.arraycopy(hundredths, offset, wideTile, row, numColumns);
+        } else {
+            for (int i = 0; i < numColumns; i++) {
+                tile[row + i] = (int) hundredths[offset + i];
+            }
+        }
+        rowsInTile++;
+        totalRows++;
+    }
+
+    /*
+     * True if rows had to be written to the scratch file.
+     */
+    public boolean isExternal() {
+        return scratchFile != null;
+    }
+
+    /*
+     * Receives the transposed matrix one column (output row) at a time: the
+     * value of every added row, in hundredths, in the order the rows were added.
+     */
+    public interface CellSink {
+        void addCell(int column, long[] hundredths, int offset, int count) throws IOException;
+    }
+
+    /*
+     * Sink that writes each column as a tab-delimited text line.
+     */
+    public static CellSink tsvSink(MatrixTextWriter writer, String[] columnLabels) {
+        return (column, hundredths, offset, count) -> {
+            writer.write(columnLabels[column]);
+            for (int i = offset; i < offset + count; i++) {
+                writer.writeTab();
+                writer.writeCenti(hundredths[i]);
+            }
+            writer.newLine();
+        };
+    }
+
+    /*
+     * Pass every column to sink, in column order. Progress lines are
+     * prefixed with tag.
+     */
+    public void transpose(CellSink sink, String tag) throws IOException {
+        long[] cell = new long[totalRows];  // The current column's values, reused
+
+        if (scratchFile == null) {
+            if (wideTile != null) {
+                long[] cellMajor = new long[rowsInTile * numColumns];
+                transposeBlocked(wideTile, cellMajor, rowsInTile, numColumns);
+                wideTile = null;
+                for (int c = 0; c < numColumns; c++) {
+                    sink.addCell(c, cellMajor, c * rowsInTile, rowsInTile);
+                    reportProgress(c, tag);
+                }
+                return;
+            }
+            int[] cellMajor = new int[rowsInTile * numColumns];
+            transposeBlocked(tile, cellMajor, rowsInTile, numColumns);
+            tile = null;
+            for (int c = 0; c < numColumns; c++) {
+                for (int r = 0; r < rowsInTile; r++) {
+                    cell[r] = cellMajor[c * rowsInTile + r];
+                }
+                sink.addCell(c, cell, 0, rowsInTile);
+                reportProgress(c, tag);
+            }
+            return;
+        }
+
+        if (rowsInTile > 0) {
+            flushTile();
+        }
+        tile = null;
+        wideTile = null;
+        staging = null;
+
+        /*
+         * Read the cells in blocks sized to the memory budget. For each tile,
+         * the block's values are one contiguous run of the scratch file; the
+         * runs of all tiles are read one after another into the block, and
+         * each cell is then decoded straight out of them.
+         */
+        long bytesPerCell = 0;
+        for (ScratchTile flushed : flushedTiles) {
+            bytesPerCell += flushed.cellBytes();
+        }
+        int cellsPerBlock = cellsPerBlock(numColumns, bytesPerCell, totalRows, memoryBudgetBytes);
+        ByteBuffer block = ByteBuffer.allocateDirect((int) (cellsPerBlock * bytesPerCell)).order(ByteOrder.nativeOrder());
+
+        for (int c0 = 0; c0 < numColumns; c0 += cellsPerBlock) {
+            int cells = Math.min(cellsPerBlock, numColumns - c0);
+
+            block.clear();
+            long tileOffset = 0;
+            for (ScratchTile flushed : flushedTiles) {
+                int runStart = block.position();
+                block.limit(runStart + (int) (cells * flushed.cellBytes()));
+                readFully(scratch, block, tileOffset + c0 * flushed.cellBytes());
+                block.position(runStart);
+                ByteBuffer run = block.slice().order(ByteOrder.nativeOrder());
+                flushed.ints = flushed.wide ? null : run.asIntBuffer();
+                flushed.longs = flushed.wide ? run.asLongBuffer() : null;
+                block.position(block.limit());
+                tileOffset += flushed.cellBytes() * numColumns;
+            }
+
+            for (int c = 0; c < cells; c++) {
+                int rowOffset = 0;
+                for (ScratchTile flushed : flushedTiles) {
+                    if (flushed.wide) {
+                        flushed.longs.position(c * flushed.rows);
+                        flushed.longs.get(cell, rowOffset, flushed.rows);
+                    } else {
+                        IntBuffer ints = flushed.ints;
+                        int start = c * flushed.rows;
+                        for (int r = 0; r < flushed.rows; r++) {
+                            cell[rowOffset + r] = ints.get(start + r);
+                        }
+                    }
+                    rowOffset += flushed.rows;
+                }
+                sink.addCell(c0 + c, cell, 0, totalRows);
+                reportProgress(c0 + c, tag);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        tile = null;
+        wideTile = null;
+        staging = null;
+        if (scratch != null) {
+            scratch.close();
+            scratch = null;
+        }
+        if (scratchFile != null) {
+            scratchFile.delete();
+        }
+    }
+
+    /*
+     * Make room for one more row in the tile (flushing a full tile) and
+     * return the row's offset.
+     */
+    private int startRow() throws IOException {
+        if (rowsInTile == tileRows) {
+            flushTile();
+        }
+        int needed = (rowsInTile + 1) * numColumns;
+        long capacity = (long) tileRows * numColumns;
+        if (wideTile != null) {
+            if (needed > wideTile.length) {
+                wideTile = Arrays.copyOf(wideTile, (int) Math.min(capacity, Math.max(needed, 2L * wideTile.length)));
+            }
+        } else if (needed > tile.length) {
+            tile = Arrays.copyOf(tile, (int) Math.min(capacity, Math.max(needed, 2L * tile.length)));
+        }
+        return rowsInTile * numColumns;
+    }
+
+    /*
+     * Switch the tile to longs, for a value that does not fit in an int. A
+     * long tile holds half the rows in the same memory, so if the int tile
+     * already holds more than that, it is flushed first.
+     */
+    private void widen() throws IOException {
+        int wideRows = Math.max(MIN_TILE_ROWS, tileRows / 2);
+        if (rowsInTile > wideRows) {
+            flushTile();
+        }
+        tileRows = wideRows;
+        wideTile = new long[Math.max(rowsInTile, Math.min(tileRows, 1024)) * numColumns];
+        for (int i = 0; i < rowsInTile * numColumns; i++) {
+            wideTile[i] = tile[i];
+        }
+        tile = null;
+    }
+
+    /*
+     * Transpose the current tile and append it to the scratch file.
+     */
+    private void flushTile() throws IOException {
+        if (scratch == null) {
+            scratchFile = File.createTempFile(scratchPrefix, ".tmp", scratchDir);
+            scratchFile.deleteOnExit();
+            scratch = FileChannel.open(scratchFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+
+        /*
+         * The tile is written in cell-major order, a run of cells at a time
+         * through the staging buffer.
+         */
+        ScratchTile flushed = new ScratchTile(rowsInTile, wideTile != null);
+        long cellBytes = flushed.cellBytes();
+        if (staging == null || staging.capacity() < cellBytes) {
+            long tileBytes = cellBytes * numColumns;
+            staging = ByteBuffer.allocateDirect((int) stagingBytes(tileBytes, cellBytes, memoryBudgetBytes)).order(ByteOrder.nativeOrder());
+        }
+        int cellsPerRun = (int) Math.min(numColumns, staging.capacity() / cellBytes);
+        for (int c0 = 0; c0 < numColumns; c0 += cellsPerRun) {
+            int c1 = Math.min(c0 + cellsPerRun, numColumns);
+            staging.clear();
+            if (wideTile != null) {
+                transposeBlocked(wideTile, staging.asLongBuffer(), rowsInTile, numColumns, c0, c1);
+            } else {
+                transposeBlocked(tile, staging.asIntBuffer(), rowsInTile, numColumns, c0, c1);
+            }
+            staging.limit((int) ((c1 - c0) * cellBytes));
+            while (staging.hasRemaining()) {
+                scratch.write(staging);
+            }
+        }
+
+        flushedTiles.add(flushed);
+        rowsInTile = 0;
+    }
+
+    /*
+     * dst[c * rows + r] = src[r * cols + c], walking BLOCK x BLOCK squares so
+     * both arrays are accessed with good locality.
+     */
+    static void transposeBlocked(int[] src, int[] dst, int rows, int cols) {
+        for (int r0 = 0; r0 < rows; r0 += BLOCK) {
+            int r1 = Math.min(r0 + BLOCK, rows);
+            for (int c0 = 0; c0 < cols; c0 += BLOCK) {
+                int c1 = Math.min(c0 + BLOCK, cols);
+                for (int r = r0; r < r1; r++) {
+                    int rowOffset = r * cols;
+                    for (int c = c0; c < c1; c++) {
+                        dst[c * rows + r] = src[rowOffset + c];
+                    }
+                }
+            }
+        }
+    }
+
+    static void transposeBlocked(long[] src, long[] dst, int rows, int cols) {
+        for (int r0 = 0; r0 < rows; r0 += BLOCK) {
+            int r1 = Math.min(r0 + BLOCK, rows);
+            for (int c0 = 0; c0 < cols; c0 += BLOCK) {
+                int c1 = Math.min(c0 + BLOCK, cols);
+                for (int r = r0; r < r1; r++) {
+                    int rowOffset = r * cols;
+                    for (int c = c0; c < c1; c++) {
+                        dst[c * rows + r] = src[rowOffset + c];
+                    }
+                }
+            }
+        }
+    }
+
+    /*
+     * As transposeBlocked(), for columns c0 (inclusive) to c1 (exclusive)
+     * only: dst.get((c - c0) * rows + r) = src[r * cols + c].
+     */
+    static void transposeBlocked(int[] src, IntBuffer dst, int rows, int cols, int c0, int c1) {
+        for (int r0 = 0; r0 < rows; r0 += BLOCK) {
+            int r1 = Math.min(r0 + BLOCK, rows);
+            for (int b0 = c0; b0 < c1; b0 += BLOCK) {
+                int b1 = Math.min(b0 + BLOCK, c1);
+                for (int r = r0; r < r1; r++) {
+                    int rowOffset = r * cols;
+                    for (int c = b0; c < b1; c++) {
+                        dst.put((c - c0) * rows + r, src[rowOffset + c]);
+                    }
+                }
+            }
+        }
+    }
+
+    static void transposeBlocked(long[] src, LongBuffer dst, int rows, int cols, int c0, int c1) {
+        for (int r0 = 0; r0 < rows; r0 += BLOCK) {
+            int r1 = Math.min(r0 + BLOCK, rows);
+            for (int b0 = c0; b0 < c1; b0 += BLOCK) {
+                int b1 = Math.min(b0 + BLOCK, c1);
+                for (int r = r0; r < r1; r++) {
+                    int rowOffset = r * cols;
+                    for (int c = b0; c < b1; c++) {
+                        dst.put((c - c0) * rows + r, src[rowOffset + c]);
+                    }
+                }
+            }
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new EOFException("Unexpected end of transpose scratch file");
+            }
+            position += read;
+        }
+    }
+
+    private static boolean fitsInInt(long value) {
+        return value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE;
+    }
+
+    private void reportProgress(int column, String tag) {
+        if ((column + 1) % 5000 == 0) {
+            System.out.println(tag + "  Completed " + (column + 1) + " of " + numColumns + " transposed rows.");
+        }
+    }
+
+    /*
+     * A tile in the scratch file: its rows, stored cell-major as ints or
+     * (wide) longs, and views of its run in the current merge block.
+     */
+    private static class ScratchTile {
+        final int rows;
+        final boolean wide;
+        IntBuffer ints;
+        LongBuffer longs;
+
+        ScratchTile(int rows, boolean wide) {
+            this.rows = rows;
+            this.wide = wide;
+        }
+
+        long cellBytes() {
+            return (long) rows * (wide ? Long.BYTES : Integer.BYTES);
+        }
+    }
+}
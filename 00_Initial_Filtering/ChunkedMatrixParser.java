@@ -0,0 +1,222 @@
+// -*- coding: utf-8 -*-
+// package ebbertLab.expressionMatrixProcessor;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+
+/*
+ * Parses the data rows of one large matrix file on several threads.
+ *
+ * The bytes after the header are cut into chunks of roughly chunkBytes, with
+ * every boundary moved forward to just past a newline so no row is split.
+ * Worker threads parse chunks independently (each with its own
+ * TabDelimitedParser reading the chunk's byte range, through positional reads
+ * or, when mapped, straight from mapped windows) into a sparse block of rows.
+ * The calling thread takes the blocks back in file order and appends
+ * them to a SparseRowStore, which accumulates the column sums.
+ *
+ * Column sums are deliberately folded on the calling thread in original row
+ * order rather than summed per chunk and reduced: floating-point addition is
+ * not associative, and the cell filter has to see exactly the same totals as
+ * a sequential run. Parsing, which is where the time goes, is what runs in
+ * parallel. At most 2 x threads chunks are in flight, which bounds memory.
+ */
+public class ChunkedMatrixParser {
+
+    static final long DEFAULT_CHUNK_BYTES = 32L * 1024 * 1024;
+
+    /*
+     * Heap held by the chunks in flight on threads threads, each counted at
+     * its text size: a parsed block takes 12 bytes per nonzero, and a nonzero
+     * and the zeros around it are usually more than that much text.
+     */
+    static long bufferedBytes(int threads) {
+        return 2L * threads * DEFAULT_CHUNK_BYTES;
+    }
+
+    private final File file;
+    private final long dataStart;
+    private final int labelColumns;
+    private final int numColumns;
+    private final int threads;
+    private final long chunkBytes;
+    private final boolean mapped;
+
+    /*
+     * dataStart is the offset of the first byte after the header line (see
+     * TabDelimitedParser.offset()).
+     */
+    public ChunkedMatrixParser(File file, long dataStart, int labelColumns, int numColumns, int threads, long chunkBytes, boolean mapped) {
+        this.file = file;
+        this.dataStart = dataStart;
+        this.labelColumns = labelColumns;
+        this.numColumns = numColumns;
+        this.threads = threads;
+        this.chunkBytes = chunkBytes;
+        this.mapped = mapped;
+    }
+
+    /*
+     * Parse all data rows and append them to store in file order. Progress
+     * lines are prefixed with tag.
+     */
+    public void parseInto(SparseRowStore store, String tag) throws IOException {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            Deque<Future<Chunk>> inFlight = new ArrayDeque<>();
+            long next = dataStart;
+            long reportedRows = 0;
+
+            while (next < size || !inFlight.isEmpty()) {
+                // Keep the workers busy, but bound the number of parsed chunks held in memory
+                while (next < size && inFlight.size() < 2 * threads) {
+                    long start = next;
+                    long end = nextBoundary(channel, start + chunkBytes, size);
+                    inFlight.add(pool.submit(() -> parseChunk(channel, start, end)));
+                    next = end;
+                }
+
+                Chunk chunk = await(inFlight.removeFirst());
+                store.addRows(chunk.rows, chunk.labels);
+
+                if (store.rowCount() / 5000 > reportedRows / 5000) {
+                    System.out.println(tag + "    Processed " + store.rowCount() + " gene rows...");
+                }
+                reportedRows = store.rowCount();
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /*
+     * Offset just past the first newline at or after target, or size.
+     */
+    static long nextBoundary(FileChannel channel, long target, long size) throws IOException {
+        if (target >= size) {
+            return size;
+        }
+        ByteBuffer scan = ByteBuffer.allocate(64 * 1024);
+        long position = target;
+        while (position < size) {
+            scan.clear();
+            int read = channel.read(scan, position);
+            if (read <= 0) {
+                break;
+            }
+            for (int i = 0; i < read; i++) {
+                if (scan.get(i) == '\n') {
+                    return position + i + 1;
+                }
+            }
+            position += read;
+        }
+        return size;
+    }
+
+    /*
+     * Parse the rows in [start, end) into a sparse block (nonzeros only).
+     */
+    private Chunk parseChunk(FileChannel channel, long start, long end) throws IOException {
+        TabDelimitedParser parser = mapped
+                ? new TabDelimitedParser(channel, start, end, labelColumns, false)
+                : new TabDelimitedParser(new RangeInputStream(channel, start, end), labelColumns);
+        SparseMatrix.Builder builder = new SparseMatrix.Builder(numColumns);
+        List<String> labels = new ArrayList<>();
+        int[] indices = new int[Math.max(16, numColumns)];
+        double[] values = new double[Math.max(16, numColumns)];
+
+        while (parser.next()) {
+            if (parser.valueCount() < numColumns) {
+                throw new IOException(file.getName() + " line " + parser.lineNumber() + " of the chunk starting at byte " + start
+                        + ": expected " + numColumns + " expression values but found " + parser.valueCount());
+            }
+            double[] row = parser.values();
+            int size = 0;
+            for (int i = 0; i < numColumns; i++) {
+                if (row[i] != 0.0) {
+                    indices[size] = i;
+                    values[size] = row[i];
+                    size++;
+                }
+            }
+            builder.addRow(indices, values, size);
+            for (int c = 0; c < labelColumns; c++) {
+                labels.add(parser.label(c));
+            }
+        }
+
+        Chunk chunk = new Chunk();
+        chunk.rows = builder.build();
+        chunk.labels = labels.toArray(new String[0]);
+        return chunk;
+    }
+
+    private static Chunk await(Future<Chunk> future) throws IOException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while parsing chunks");
+        }
+    }
+
+    /*
+     * One parsed chunk: its rows in sparse form and labelColumns labels per row.
+     */
+    private static class Chunk {
+        SparseMatrix rows;
+        String[] labels;
+    }
+
+    /*
+     * InputStream over [start, end) of a shared channel, using positional
+     * reads so several streams can read the same channel concurrently.
+     */
+    static class RangeInputStream extends InputStream {
+
+        private final FileChannel channel;
+        private long position;
+        private final long end;
+
+        RangeInputStream(FileChannel channel, long start, long end) {
+            this.channel = channel;
+            this.position = start;
+            this.end = end;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (position >= end) {
+                return -1;
+            }
+            int wanted = (int) Math.min(length, end - position);
+            int read = channel.read(ByteBuffer.wrap(buffer, offset, wanted), position);
+            if (read < 0) {
+                return -1;
+            }
+            position += read;
+            return read;
+        }
+    }
+}
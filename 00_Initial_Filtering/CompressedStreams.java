@@ -0,0 +1,333 @@
+// -*- coding: utf-8 -*-
+// package ebbertLab.expressionMatrixProcessor;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/*
+ * Opens matrix files that may be gzip-compressed, with the codec running on
+ * its own thread so (de)compression overlaps with parsing and formatting.
+ *
+ * Compression is detected from the file's first bytes, not its name. Reading
+ * a gzip file starts a read-ahead thread that inflates the file into 1 MB
+ * blocks and hands them to the parser through a small bounded queue; writing
+ * compressed output hands 1 MB blocks to a thread that deflates them. zstd
+ * files are recognized but not supported, since the JDK has no zstd codec.
+ */
+public class CompressedStreams {
+
+    private static final int BLOCK_SIZE = 1 << 20;
+    private static final int QUEUED_BLOCKS = 4;
+
+    private CompressedStreams() {
+    }
+
+    /*
+     * Heap held by one background reader or writer: its queued blocks, the
+     * block being filled and the block being consumed.
+     */
+    static long bufferedBytes() {
+        return (long) (QUEUED_BLOCKS + 2) * BLOCK_SIZE;
+    }
+
+    /*
+     * True if file is gzip- or zstd-compressed.
+     */
+    public static boolean isCompressed(File file) throws IOException {
+        int magic = readMagic(file);
+        return isGzip(magic) || isZstd(magic);
+    }
+
+    /*
+     * Stream over the (uncompressed) contents of file.
+     */
+    public static InputStream openInput(File file) throws IOException {
+        int magic = readMagic(file);
+        if (isZstd(magic)) {
+            throw new IOException(file.getName() + " is zstd-compressed, which is not supported. Decompress it or recompress it with gzip.");
+        }
+        if (isGzip(magic)) {
+            return new ReadAheadInputStream(new GZIPInputStream(new FileInputStream(file), 1 << 16), "gunzip-" + file.getName());
+        }
+        return new FileInputStream(file);
+    }
+
+    /*
+     * Stream writing to file, gzip-compressed on a background thread if
+     * compress is set.
+     */
+    public static OutputStream openOutput(File file, boolean compress) throws IOException {
+        if (compress) {
+            return new AsyncGzipOutputStream(new FileOutputStream(file), "gzip-" + file.getName());
+        }
+        return new FileOutputStream(file);
+    }
+
+    private static boolean isGzip(int magic) {
+        return (magic >>> 16) == 0x1F8B;
+    }
+
+    private static boolean isZstd(int magic) {
+        return magic == 0x28B52FFD;
+    }
+
+    /*
+     * First four bytes of file as a big-endian int (missing bytes are 0).
+     */
+    private static int readMagic(File file) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            byte[] bytes = new byte[4];
+            int read = 0;
+            while (read < bytes.length) {
+                int n = in.read(bytes, read, bytes.length - read);
+                if (n < 0) {
+                    break;
+                }
+                read += n;
+            }
+            return (bytes[0] & 0xFF) << 24 | (bytes[1] & 0xFF) << 16 | (bytes[2] & 0xFF) << 8 | (bytes[3] & 0xFF);
+        }
+    }
+
+    /*
+     * A background thread's failure, to be thrown on the consumer's thread.
+     */
+    private static IOException asIOException(Throwable failure, Thread thread) {
+        if (failure instanceof IOException) {
+            return (IOException) failure;
+        }
+        return new IOException(thread.getName() + " failed: " + failure, failure);
+    }
+
+    /*
+     * InputStream fed by a thread that reads the source stream ahead in
+     * blocks, so a slow source (e.g. inflating gzip) runs concurrently with
+     * the consumer.
+     */
+    static class ReadAheadInputStream extends InputStream {
+
+        private static final byte[] END = new byte[0];
+
+        private final InputStream source;
+        private final BlockingQueue<byte[]> blocks = new ArrayBlockingQueue<>(QUEUED_BLOCKS);
+        private final Thread reader;
+        private volatile Throwable failure;
+        private volatile boolean closed;
+
+        private byte[] current = new byte[0];
+        private int position;
+        private boolean endOfStream;
+
+        ReadAheadInputStream(InputStream source, String threadName) {
+            this.source = source;
+            this.reader = new Thread(this::readAhead, threadName);
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        private void readAhead() {
+            try {
+                while (true) {
+                    byte[] block = new byte[BLOCK_SIZE];
+                    int size = 0;
+                    while (size < block.length) {
+                        int read = source.read(block, size, block.length - size);
+                        if (read < 0) {
+                            break;
+                        }
+                        size += read;
+                    }
+                    if (size > 0) {
+                        blocks.put(size == block.length ? block : Arrays.copyOf(block, size));
+                    }
+                    if (size < block.length) {
+                        break;
+                    }
+                }
+            } catch (InterruptedException e) {
+                // Closed by the consumer
+            } catch (Throwable e) {
+                if (!closed) {
+                    failure = e;
+                }
+            } finally {
+                /*
+                 * However the thread ends, the consumer must see END, or it
+                 * would wait forever. After close() nobody takes it.
+                 */
+                if (!closed) {
+                    try {
+                        blocks.put(END);
+                    } catch (InterruptedException e) {
+                        // Closed by the consumer
+                    }
+                }
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            if (position == current.length) {
+                if (endOfStream) {
+                    return -1;
+                }
+                try {
+                    current = blocks.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for " + reader.getName());
+                }
+                position = 0;
+                if (current == END) {
+                    endOfStream = true;
+                    if (failure != null) {
+                        throw asIOException(failure, reader);
+                    }
+                    return -1;
+                }
+            }
+            int count = Math.min(length, current.length - position);
+            System.arraycopy(current, position, buffer, offset, count);
+            position += count;
+            return count;
+        }
+
+        @Override
+        public void close() throws IOException {
+            closed = true;
+            reader.interrupt();
+            source.close();
+        }
+    }
+
+    /*
+     * OutputStream that collects writes into blocks and gzip-compresses them
+     * on a background thread. Errors from the compressing thread are reported
+     * by the next write or by close().
+     */
+    static class AsyncGzipOutputStream extends OutputStream {
+
+        private static final byte[] END = new byte[0];
+
+        private final BlockingQueue<byte[]> blocks = new ArrayBlockingQueue<>(QUEUED_BLOCKS);
+        private final Thread writer;
+        private volatile Throwable failure;
+
+        private byte[] buffer = new byte[BLOCK_SIZE];
+        private int count;
+        private boolean closed;
+
+        AsyncGzipOutputStream(OutputStream target, String threadName) {
+            this.writer = new Thread(() -> compress(target), threadName);
+            writer.setDaemon(true);
+            writer.start();
+        }
+
+        private void compress(OutputStream target) {
+            boolean ended = false;
+            try (OutputStream out = new GZIPOutputStream(target, 1 << 16)) {
+                while (true) {
+                    byte[] block = blocks.take();
+                    if (block == END) {
+                        ended = true;
+                        return;
+                    }
+                    out.write(block);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Throwable e) {
+                failure = e;
+                if (!ended) {
+                    drain();    // Closing the gzip stream can fail after END was taken
+                }
+            }
+        }
+
+        /*
+         * After a failure, keep taking blocks so the producer never blocks.
+         */
+        private void drain() {
+            try {
+                while (blocks.take() != END) {
+                    // Discard
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (count == buffer.length) {
+                handOff();
+            }
+            buffer[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            while (length > 0) {
+                if (count == buffer.length) {
+                    handOff();
+                }
+                int n = Math.min(length, buffer.length - count);
+                System.arraycopy(bytes, offset, buffer, count, n);
+                count += n;
+                offset += n;
+                length -= n;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (count > 0) {
+                handOff();
+            }
+            put(END);
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for " + writer.getName());
+            }
+            if (failure != null) {
+                throw asIOException(failure, writer);
+            }
+        }
+
+        private void handOff() throws IOException {
+            if (failure != null) {
+                throw asIOException(failure, writer);
+            }
+            put(count == buffer.length ? buffer : Arrays.copyOf(buffer, count));
+            buffer = new byte[BLOCK_SIZE];
+            count = 0;
+        }
+
+        private void put(byte[] block) throws IOException {
+            try {
+                blocks.put(block);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while queueing output for " + writer.getName());
+            }
+        }
+    }
+}
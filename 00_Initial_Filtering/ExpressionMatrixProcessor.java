@@ -3,6 +3,8 @@
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class ExpressionMatrixProcessor {
 
@@ -12,18 +14,123 @@ public class ExpressionMatrixProcessor {
 //    static final int GENE_MIN_CELLS = 10;         // Minimum number of cells in which a gene must be expressed (>0) to be retained
 //    static final String INPUT_DIR = "RawData";    // Directory path where input expression matrix files (.txt format) are stored
 
+    // Phase 3 output formats accepted by --output-format
+    static final List<String> OUTPUT_FORMATS = Arrays.asList("tsv", "binary", "mtx");
+
+    // Phase 1 strategies accepted by --strategy (see MemoryPlanner)
+    static final List<String> STRATEGIES = Arrays.asList("auto", "single-pass", "two-pass");
+
+    /*
+     * Settings shared by the per-sample phases, filled in from the command line.
+     */
+    static class Options {
+        boolean twoColumnHeader = false;    // Default
+        double cellThreshold = 500.0;       // Default
+        String strategy = "auto";           // Default: MemoryPlanner picks one or two passes per sample
+        long memoryBudgetBytes = heapBudgetBytes(); // Default: half of the maximum heap (-Xmx)
+        int threads = 1;                    // Default: one sample at a time
+        int fileThreads = 1;                // Default: parse each file on one thread
+        boolean mmap = false;               // Default: read matrices through an InputStream
+        boolean compressOutput = false;     // Default: write plain-text matrices
+        boolean checkpoint = false;         // Default: write no checkpoints
+        boolean resume = false;             // Default: process every sample from scratch
+        boolean incremental = false;        // Default: no comparison with the previous run's cohort
+        Set<String> outputFormats = new LinkedHashSet<>(Collections.singletonList("tsv")); // Default: text output only
+
+        /*
+         * If two-column header file, the expression column starts at index 2. Otherwise, 1.
+         */
+        int expressionColumnIndex() {
+            return twoColumnHeader ? 2 : 1;
+        }
+
+        /*
+         * Largest memory budget the heap has room for: half of the maximum
+         * heap, which leaves the rest to the garbage collector and to what
+         * the budget does not track (1024 MB if the heap is unbounded).
+         */
+        static long heapBudgetBytes() {
+            long maxMemory = Runtime.getRuntime().maxMemory();
+            return maxMemory == Long.MAX_VALUE ? 1024L * 1024 * 1024 : maxMemory / 2;
+        }
+    }
+
+    /*
+     * Everything Phase 1 learns about one input file that Phases 2 and 3 need.
+     */
+    static class SampleResult {
+        File inputFile;
+        String sampleName;
+        File filteredFile;              // Filtered output file
+        int[] geneOrder;                // Gene order in the file, as GeneIndex IDs
+        int[] expressedInCells;         // Cells expressing each gene (same order as geneOrder)
+        double[] columnSums;            // Total reads of every cell in the input file
+        int[] retainedCells;            // Input columns of the cells that passed the cell threshold
+        SparseMatrix filteredMatrix;    // Filtered matrix kept in memory for Phase 3 (single-pass mode), or null
+        long keptBytes;                 // Memory budget reserved for filteredMatrix until Phase 3 is done
+        String[] retainedCellIDs;       // Cell IDs of filteredMatrix
+        boolean fromCheckpoint;         // Phase 1 was reused from the sample's checkpoint (--resume)
+    }
+
+    /*
+     * Gene IDs in file order with the number of retained cells expressing
+     * each gene.
+     */
+    static class GeneCounts {
+        int[] genes = new int[1024];
+        int[] counts = new int[1024];
+        int size;
+
+        void add(int gene, int count) {
+            if (size == genes.length) {
+                genes = Arrays.copyOf(genes, size * 2);
+                counts = Arrays.copyOf(counts, size * 2);
+            }
+            genes[size] = gene;
+            counts[size] = count;
+            size++;
+        }
+
+        void addAll(GeneCounts other) {
+            for (int i = 0; i < other.size; i++) {
+                add(other.genes[i], other.counts[i]);
+            }
+        }
+    }
+
+    /*
+     * One pipeline batch of the Phase 1 second pass: the rows formatted for
+     * the filtered matrix and their genes.
+     */
+    static class FilteredRows {
+        byte[] text;
+        GeneCounts genes;
+    }
+
+    /*
+     * One pipeline batch of Phase 3: the values of the rows that survive the
+     * global gene filter, in hundredths, row after row. Held as ints, or as
+     * longs (wideHundredths) if any value does not fit in an int.
+     */
+    static class CentiRows {
+        int[] hundredths;
+        long[] wideHundredths;
+        int rows;
+    }
+
     public static void main(String[] args) throws IOException {
 
     	// === Command-line Argument Parsing ===
-    	boolean twoColumnHeader = false;    // Default
+    	Options options = new Options();
     	String inputDir = "RawData";        // Default
-    	double cellThreshold = 500.0;       // Default
     	int geneMinCells = 10;              // Default
+    	String metricsFile = null;          // Default: no metrics file
+    	double metricsIntervalSeconds = 10; // Default
 
     	for (int i = 0; i < args.length; i++) {
     	    switch (args[i]) {
     	        case "--two-column-header":
-    	            twoColumnHeader = true;
+    	            options.twoColumnHeader = true;
     	            break;
 
     	        case "--input-dir":
@@ -37,7 +144,7 @@ public class ExpressionMatrixProcessor {
 
     	        case "--cell-threshold":
     	            if (i + 1 < args.length) {
-    	                cellThreshold = Double.parseDouble(args[++i]);
+    	                options.cellThreshold = Double.parseDouble(args[++i]);
     	            } else {
     	                System.out.println("❌ Missing value for --cell-threshold");
     	                System.exit(1);
@@ -53,241 +160,326 @@ public class ExpressionMatrixProcessor {
     	            }
     	            break;
 
+    	        case "--single-pass":
+    	            options.strategy = "single-pass";
+    	            break;
+
+    	        case "--strategy":
+    	            if (i + 1 < args.length) {
+    	                options.strategy = args[++i];
+    	                if (!STRATEGIES.contains(options.strategy)) {
+    	                    System.out.println("❌ Unknown strategy: " + options.strategy + " (expected " + String.join(", ", STRATEGIES) + ")");
+    	                    System.exit(1);
+    	                }
+    	            } else {
+    	                System.out.println("❌ Missing value for --strategy");
+    	                System.exit(1);
+    	            }
+    	            break;
+
+    	        case "--memory-budget":
+    	            if (i + 1 < args.length) {
+    	                options.memoryBudgetBytes = Long.parseLong(args[++i]) * 1024 * 1024;
+    	            } else {
+    	                System.out.println("❌ Missing value for --memory-budget");
+    	                System.exit(1);
+    	            }
+    	            break;
+
+    	        case "--threads":
+    	            if (i + 1 < args.length) {
+    	                options.threads = Math.max(1, Integer.parseInt(args[++i]));
+    	            } else {
+    	                System.out.println("❌ Missing value for --threads");
+    	                System.exit(1);
+    	            }
+    	            break;
+
+    	        case "--file-threads":
+    	            if (i + 1 < args.length) {
+    	                options.fileThreads = Math.max(1, Integer.parseInt(args[++i]));
+    	            } else {
+    	                System.out.println("❌ Missing value for --file-threads");
+    	                System.exit(1);
+    	            }
+    	            break;
+
+    	        case "--compress-output":
+    	            options.compressOutput = true;
+    	            break;
+
+    	        case "--mmap":
+    	            options.mmap = true;
+    	            break;
+
+    	        case "--checkpoint":
+    	            options.checkpoint = true;
+    	            break;
+
+    	        case "--resume":
+    	            options.resume = true;
+    	            options.checkpoint = true;
+    	            break;
+
+    	        case "--incremental":
+    	            options.incremental = true;
+    	            options.resume = true;
+    	            options.checkpoint = true;
+    	            break;
+
+    	        case "--output-format":
+    	            if (i + 1 < args.length) {
+    	                options.outputFormats.clear();
+    	                for (String format : args[++i].split(",")) {
+    	                    if (!OUTPUT_FORMATS.contains(format.trim())) {
+    	                        System.out.println("❌ Unknown output format: " + format + " (expected " + String.join(", ", OUTPUT_FORMATS) + ")");
+    	                        System.exit(1);
+    	                    }
+    	                    options.outputFormats.add(format.trim());
+    	                }
+    	            } else {
+    	                System.out.println("❌ Missing value for --output-format");
+    	                System.exit(1);
+    	            }
+    	            break;
+
+    	        case "--metrics-file":
+    	            if (i + 1 < args.length) {
+    	                metricsFile = args[++i];
+    	            } else {
+    	                System.out.println("❌ Missing value for --metrics-file");
+    	                System.exit(1);
+    	            }
+    	            break;
+
+    	        case "--metrics-interval":
+    	            if (i + 1 < args.length) {
+    	                metricsIntervalSeconds = Double.parseDouble(args[++i]);
+    	            } else {
+    	                System.out.println("❌ Missing value for --metrics-interval");
+    	                System.exit(1);
+    	            }
+    	            break;
+
     	        default:
     	            System.out.println("⚠️ Unknown argument: " + args[i]);
     	            break;
     	    }
     	}
 
-        System.out.println("🔍 Header mode: " + (twoColumnHeader ? "TWO columns (gene name + ID)" : "ONE column (gene name only)"));
-            
-		/*
-		 * If two-column header file, the expression column starts at index 2. Otherwise, 1.
-		 */
-		int expressionColumnIndex;
-		if (twoColumnHeader) {
-			expressionColumnIndex = 2;
-		} else {
-			expressionColumnIndex = 1;
-		}
+        if (options.memoryBudgetBytes > Options.heapBudgetBytes()) {
+            System.out.println("⚠️ --memory-budget " + options.memoryBudgetBytes / (1024 * 1024) + " MB is more than half of the maximum heap ("
+                    + Runtime.getRuntime().maxMemory() / (1024 * 1024) + " MB); using " + Options.heapBudgetBytes() / (1024 * 1024)
+                    + " MB. Raise -Xmx for a larger budget.");
+            options.memoryBudgetBytes = Options.heapBudgetBytes();
+        }
+
+        System.out.println("🔍 Header mode: " + (options.twoColumnHeader ? "TWO columns (gene name + ID)" : "ONE column (gene name only)"));
+
+        if (options.fileThreads > 1) {
+            System.out.println("🧵 Parsing each file on " + options.fileThreads + " threads: in chunks when it is read once, through "
+                    + options.fileThreads + " parser workers when it is read again.");
+        }
+        if (!options.outputFormats.equals(Collections.singleton("tsv"))) {
+            System.out.println("💾 Phase 3 output formats: " + String.join(", ", options.outputFormats));
+        }
+        if (options.mmap) {
+            System.out.println("🗺️ Reading matrices through memory-mapped file windows.");
+        }
+        if (options.compressOutput) {
+            System.out.println("🗜️ Writing filtered and transposed text matrices gzip-compressed (.txt.gz).");
+        }
+        if (options.incremental) {
+            System.out.println("📦 Incremental mode: only new or changed samples are parsed, and only transposed outputs whose genes changed are rewritten.");
+        } else if (options.resume) {
+            System.out.println("♻️ Resuming: samples with up-to-date checkpoints skip Phase 1 and/or Phase 3.");
+        } else if (options.checkpoint) {
+            System.out.println("💾 Writing per-sample checkpoints, so an interrupted run can be continued with --resume.");
+        }
+        if (options.strategy.equals("single-pass")) {
+            System.out.println("🔍 Single-pass mode: rows are kept in a sparse store (memory budget " + options.memoryBudgetBytes / (1024 * 1024) + " MB, spilling to disk beyond that)");
+        }
 
-        System.out.println("🔍 Searching for .txt expression matrices in directory: " + inputDir);
+        System.out.println("🔍 Searching for .txt and .txt.gz expression matrices in directory: " + inputDir);
 
         // Step 1: Locate input files
         File dir = new File(inputDir);
-        File[] inputFiles = dir.listFiles((d, name) -> name.endsWith(".txt"));
+        File[] inputFiles = dir.listFiles((d, name) -> name.endsWith(".txt") || name.endsWith(".txt.gz"));
 
         if (inputFiles == null || inputFiles.length == 0) {
-            System.out.println("❌ No .txt files found in directory: " + inputDir);
+            System.out.println("❌ No .txt or .txt.gz files found in directory: " + inputDir);
             return; // Terminate if no input files are found
         }
 
-        System.out.println("📂 Found " + inputFiles.length + " input files to process.");
-
-        // === Data Structures ===
-        Map<String, Integer> globalGeneCounts = new LinkedHashMap<>();  // Track total cells expressing each gene
-        Map<File, String[]> geneOrderPerFile = new HashMap<>();         // Remember gene order for each file
-        Map<File, File> filteredFilePerInput = new HashMap<>();         // Map each input file to its filtered output file
-
-        long pipelineStart = System.nanoTime();  // Timer start
-
-        // ============================ PHASE 1 ============================
-        // Cell filtering and global gene expression counting phase
-        System.out.println("\n=== PHASE 1: FILTER CELLS + TRACK GENE COUNTS ===");
-
-        // Process each input file sequentially
-        for (File inputFile : inputFiles) {
-            String sampleName = inputFile.getName().replace(".txt", "");
-            System.out.println("\n🔄 Starting file: " + sampleName);
-            long fileStart = System.nanoTime();
-
-            // Track filtered-out cells for this file
-            BufferedWriter filteredCellsWriter = new BufferedWriter(new FileWriter("removed_cells_" + sampleName + ".txt"));
-            filteredCellsWriter.write("CellID\tTotalReads\n");
-
-            // First Pass: Compute total counts for each cell (sum columns)
-            BufferedReader reader = new BufferedReader(new FileReader(inputFile));
-            String headerLine = reader.readLine(); // Read header line to extract column identifiers
-            String[] header = headerLine.split("\t");
-            
-            int headerColumns = twoColumnHeader ? 2 : 1;     // <-- key branching logic
-            int numColumns = header.length - headerColumns;  // <-- adjusts based on header type
-//            int numColumns = header.length - 1;    // Deduct gene 
+        File[] zstdFiles = dir.listFiles((d, name) -> name.endsWith(".txt.zst"));
+        for (File zstdFile : zstdFiles) {
+            System.out.println("⚠️ Skipping " + zstdFile.getName() + ": zstd input is not supported. Decompress it or recompress it with gzip.");
+        }
 
+        System.out.println("📂 Found " + inputFiles.length + " input files to process.");
 
-			
-            /*
-             * Get cellIDs. If two-column header file, start at the third column (index 2)
-             */
-			String[] cellIDs = Arrays.copyOfRange(header, expressionColumnIndex, header.length); // Cell IDs
-			
-            double[] columnSums = new double[numColumns]; // Initialize sums array
-            Arrays.fill(columnSums, 0.0);
+        // Never run more sample tasks than there are samples
+        options.threads = Math.min(options.threads, inputFiles.length);
+        if (options.threads > 1) {
+            System.out.println("🧵 Processing up to " + options.threads + " samples concurrently.");
+        }
 
-            System.out.println("  🔬 First pass: Computing column sums for " + numColumns + " cells...");
+        ProcessingMetrics metrics = ProcessingMetrics.disabled();
+        if (metricsFile != null) {
+            System.out.println("📈 Writing metrics to " + metricsFile + " every " + metricsIntervalSeconds + " seconds.");
+            metrics = ProcessingMetrics.open(new File(metricsFile), Math.round(metricsIntervalSeconds * 1000), new File("."));
+            metrics.event("run_start", "input_dir", inputDir, "files", inputFiles.length, "two_column_header", options.twoColumnHeader,
+                    "cell_threshold", options.cellThreshold, "gene_min_cells", geneMinCells, "threads", options.threads,
+                    "file_threads", options.fileThreads, "strategy", options.strategy, "memory_budget_mb", options.memoryBudgetBytes / (1024 * 1024),
+                    "mmap", options.mmap, "compress_output", options.compressOutput, "output_formats", String.join(",", options.outputFormats));
+        }
+        ProcessingMetrics runMetrics = metrics;
 
-            // Stream through the file to compute column sums incrementally
-            String line;
-            int geneRows = 0;
-            while ((line = reader.readLine()) != null) {
-                String[] fields = line.split("\t");
-                for (int i = 0; i < numColumns; i++) {
-                    columnSums[i] += Double.parseDouble(fields[i + expressionColumnIndex]);
-                }
-                geneRows++;
-                if (geneRows % 5000 == 0) {
-                    System.out.println("    Processed " + geneRows + " gene rows...");
-                }
-            }
-            reader.close();
-            System.out.println("  ✅ Finished computing column sums.");
+        // === Data Structures ===
+        GeneIndex geneIndex = new GeneIndex();                          // Dense int ID for every gene key, shared by all files
+        MemoryBudget memoryBudget = new MemoryBudget(options.memoryBudgetBytes, options.threads); // Shared by running samples and kept matrices
 
-            // Determine which cells to retain based on cellThreshold
-            List<Integer> retainedIndices = new ArrayList<>();
-			System.out.println("  ❌ Filtering low-count cells (< " + cellThreshold + " reads):");
-            int cellsFiltered = 0;
-            for (int i = 0; i < numColumns; i++) {
-                if (columnSums[i] >= cellThreshold) {
-                    retainedIndices.add(i);
-                } else {
-                    filteredCellsWriter.write(cellIDs[i] + "\t" + columnSums[i] + "\n");
-                    cellsFiltered++;
+        /*
+         * With --resume, restore the samples whose Phase 1 checkpoints are
+         * still up to date first: they are not parsed again, so they are left
+         * out of the memory plan.
+         */
+        Map<File, SampleResult> restored = new HashMap<>();
+        if (options.resume) {
+            for (File inputFile : inputFiles) {
+                String sampleName = sampleName(inputFile);
+                SampleResult cached = SampleCheckpoint.loadPhase1(inputFile, options, geneIndex, options.threads > 1 ? "[" + sampleName + "] " : "");
+                if (cached != null) {
+                    geneIndex.offerReference(cached.geneOrder);
+                    restored.put(inputFile, cached);
                 }
             }
-            filteredCellsWriter.close();
-            System.out.println("  📊 Cells retained: " + retainedIndices.size() + " | Filtered out: " + cellsFiltered);
-
-            
-            
-            System.out.println("  🛠️ Second pass: Writing filtered matrix + counting gene expression...");
-            
-            // Second Pass: Write filtered matrix + update global gene counts
-            File filteredOutput = new File(sampleName + ".filtered_expression_matrix.txt");
-            BufferedWriter writer = new BufferedWriter(new FileWriter(filteredOutput));
-
-//            writer.write(header[0]);  // Write gene name 
-            if (twoColumnHeader) {
-                writer.write(header[0] + "\t" + header[1]);
-            } else {
-                writer.write(header[0]);
-            }
-            for (int idx : retainedIndices) {
-                writer.write("\t" + header[idx + expressionColumnIndex]);
+            if (!restored.isEmpty()) {
+                System.out.println("♻️ " + restored.size() + " of " + inputFiles.length + " samples have up-to-date Phase 1 checkpoints and are not planned.");
             }
-            writer.newLine();
-
-            List<String> geneOrder = new ArrayList<>();
-            int genesProcessed = 0;
+        }
 
-            // Begin file again and advance past header row
-            reader = new BufferedReader(new FileReader(inputFile));
-            headerLine = reader.readLine();
+        // Decide per sample how to stay within the memory budget
+        File[] plannedFiles = Arrays.stream(inputFiles).filter(file -> !restored.containsKey(file)).toArray(File[]::new);
+        Map<File, MemoryPlanner.SamplePlan> plans = plannedFiles.length > 0 ? MemoryPlanner.plan(plannedFiles, options, metrics) : Collections.emptyMap();
 
-            while ((line = reader.readLine()) != null) {
-                String[] fields = line.split("\t");
-//                String geneName = fields[0];
-                
-                /*
-                 * If a two-column header file, use both gene name and tx ID as geneName
-                 */
-                String geneName = twoColumnHeader ? fields[0] + "|" + fields[1] : fields[0];
-                geneOrder.add(geneName);
+        long pipelineStart = System.nanoTime();  // Timer start
 
-                int expressedInCells = 0;
+        // ============================ PHASE 1 ============================
+        // Cell filtering and global gene expression counting phase
+        System.out.println("\n=== PHASE 1: FILTER CELLS + TRACK GENE COUNTS ===");
 
-//                writer.write(fields[0]);
-                if (twoColumnHeader) {
-                    writer.write(fields[0] + "\t" + fields[1]);
-                } else {
-                    writer.write(fields[0]);
+        // Process each input file (concurrently with --threads)
+        List<Callable<SampleResult>> filterTasks = new ArrayList<>();
+        for (File inputFile : inputFiles) {
+            filterTasks.add(() -> {
+                String sampleName = sampleName(inputFile);
+                String tag = options.threads > 1 ? "[" + sampleName + "] " : "";
+                SampleResult cached = restored.get(inputFile);
+                if (cached != null) {
+                    System.out.println("\n" + tag + "♻️ Reusing Phase 1 results for " + sampleName + " from " + SampleCheckpoint.phase1File(sampleName).getName());
+                    return cached;
                 }
-
-                /*
-                 * Print all of the expression values
-                 */
-                for (int idx : retainedIndices) {
-                	
-                	/*
-                	 * Round to two decimals before assessing if it's a whole
-                	 * number and printing. A lot of numbers are N.000001. I want
-                	 * those to round to the whole number and then be printed as
-                	 * a whole number in the next line of code.
-                	 */
-
-					double value = Math.round(Double.parseDouble(fields[idx + expressionColumnIndex]) * 100.0) / 100.0;
-                    // writer.write("\t" + value);
-					
-					// If it's a whole number, don't print the .0 to save space
-					writer.write("\t" + (value == (long) value ? String.valueOf((long) value) : String.format("%.2f", value)));
-					
-                    if (value > 0) {
-                        expressedInCells++;
-                    }
+                SampleCheckpoint.invalidate(sampleName);
+                long share = memoryBudget.acquire();
+                SampleResult result = null;
+                try {
+                    result = filterSample(inputFile, options, plans.get(inputFile).singlePass, geneIndex, share, runMetrics);
+                } finally {
+                    memoryBudget.release(share, result != null ? result.keptBytes : 0);
                 }
-                writer.newLine();
-
-                globalGeneCounts.put(geneName, globalGeneCounts.getOrDefault(geneName, 0) + expressedInCells);
+                if (options.checkpoint) {
+                    SampleCheckpoint.savePhase1(result, options, geneIndex);
+                }
+                return result;
+            });
+        }
+        List<SampleResult> results = runAll(filterTasks, options.threads);
 
-                genesProcessed++;
-                if (genesProcessed % 5000 == 0) {
-                    System.out.println("    Processed " + genesProcessed + " genes...");
+        /*
+         * Merge the per-sample gene counts in input file order. IDs may have
+         * been assigned in any order by concurrent samples, so also record
+         * the order in which genes first appear across the files; that is
+         * the order filtered_genes.txt is written in, exactly as in a
+         * sequential run.
+         */
+        int[] globalGeneCounts = new int[geneIndex.size()];   // Total cells expressing each gene, by ID
+        int[] firstSeenOrder = new int[geneIndex.size()];
+        int genesSeen = 0;
+        BitSet seen = new BitSet(geneIndex.size());
+        for (SampleResult result : results) {
+            for (int g = 0; g < result.geneOrder.length; g++) {
+                int id = result.geneOrder[g];
+                globalGeneCounts[id] += result.expressedInCells[g];
+                if (!seen.get(id)) {
+                    seen.set(id);
+                    firstSeenOrder[genesSeen++] = id;
                 }
             }
+        }
 
-            reader.close();
-            writer.close();
-
-            System.out.println("  ✅ Filtered matrix written: " + filteredOutput.getName());
-
-            // Record metadata for downstream use
-            geneOrderPerFile.put(inputFile, geneOrder.toArray(new String[0]));
-            filteredFilePerInput.put(inputFile, filteredOutput);
 
-            long fileEnd = System.nanoTime();
-            System.out.printf("⏱️ Completed file: %s in %.2f seconds\n", sampleName, (fileEnd - fileStart) / 1_000_000_000.0);
-        }
-        
-        
         /*
          * Verify gene order is identical across all input files.
          */
-        if(areAllArraysIdentical(geneOrderPerFile)){
+        if(areAllGeneOrdersIdentical(results, geneIndex)){
         	System.out.println("\n✅ All files have identical genes and order.");
         }
         else {
         	System.out.println("❌ ERROR: Some files had different genes / order.");
         }
-        
+
 
         // ======================== PHASE 2 ========================
         // Global gene filtering based on expression frequency across all input files
         System.out.println("\n=== PHASE 2: Global gene filtering based on expression counts ===");
 		long geneFilterStart = System.nanoTime();
+        ProcessingMetrics.Phase geneFilterPhase = metrics.startPhase(null, "gene_filter");
+        geneFilterPhase.watchOutput(new File("filtered_genes.txt"));
 
         BufferedWriter filteredGenesWriter = new BufferedWriter(new FileWriter("filtered_genes.txt"));
         filteredGenesWriter.write("GeneID\tExpressingCells\n");
-        Set<String> globallyFilteredGenes = new HashSet<>();
+        BitSet globallyFilteredGenes = new BitSet(geneIndex.size());    // Filtered gene IDs
 
         // Determine genes to be globally filtered and write them to output
         int genesFiltered = 0;
-        for (Map.Entry<String, Integer> entry : globalGeneCounts.entrySet()) {
-            String gene = entry.getKey();
-            int count = entry.getValue();
+        for (int i = 0; i < genesSeen; i++) {
+            int id = firstSeenOrder[i];
+            String gene = geneIndex.name(id);
+            int count = globalGeneCounts[id];
             if (count < geneMinCells) {
-                globallyFilteredGenes.add(gene);
+                globallyFilteredGenes.set(id);
                 filteredGenesWriter.write(gene + "\t" + count + "\n");
                 // System.out.println("  🔥 Filtering out gene: " + gene + " (Expressed in " + count + " cells)");
                 genesFiltered++;
             }
         }
         filteredGenesWriter.close();
+        geneFilterPhase.setProgress(genesSeen, 0);
+        geneFilterPhase.end();
         System.out.println("  🚫 Total globally filtered genes: " + genesFiltered);
+
+        /*
+         * Compare with the cohort of the previous run (--incremental), then
+         * record this one (with checkpoints).
+         */
+        if (options.incremental) {
+            SampleCheckpoint.Cohort previousCohort = SampleCheckpoint.loadCohort();
+            if (previousCohort == null) {
+                System.out.println("  📦 No " + SampleCheckpoint.cohortFile().getName() + " from an earlier run; treating every sample as new.");
+            } else {
+                SampleCheckpoint.reportChanges(previousCohort, results, globallyFilteredGenes, geneIndex, geneMinCells);
+            }
+        }
+        if (options.checkpoint) {
+            SampleCheckpoint.saveCohort(results, firstSeenOrder, genesSeen, globalGeneCounts, globallyFilteredGenes, geneIndex, geneMinCells);
+        }
 		long geneFilterEnd = System.nanoTime();
 		System.out.printf("⏱️ Completed global gene filtering: in %.2f seconds\n", (geneFilterEnd - geneFilterStart) / 1_000_000_000.0);
 
-		
-		
-		
+
+
+
         // ======================== PHASE 3 ========================
         // Transpose filtered matrices while omitting globally filtered genes
         System.out.println("\n=== PHASE 3: Transposing filtered matrices ===");
@@ -295,199 +487,877 @@ public class ExpressionMatrixProcessor {
         /*
          * For each original input file:
          * 	1. Get the filtered file and gene order
-         * 	2. Print each remaining cell to separate files while omitting genes that
-         *     where globally omitted.
+         * 	2. Transpose the remaining genes (omitting genes that were globally
+         *     omitted) so each remaining cell becomes one output row.
          */
-        for (File inputFile : inputFiles) {
-            String sampleName = inputFile.getName().replace(".txt", "");
-            System.out.println("\n🔄 Transposing filtered matrix for file: " + sampleName);
-            long transposeStart = System.nanoTime();
-
-            // Get file names for filtered file and gene order for each original input file
-            File filteredFile = filteredFilePerInput.get(inputFile);
-            String[] geneOrder = geneOrderPerFile.get(inputFile);
-            
-            // There should be geneOrder.length - globallyFilteredGenes.size() genes printed,
-            // in the end. ChatGPT got this wrong originally. Was printing only oeneOrder.length
-            System.out.println("\n  There are " + (geneOrder.length - globallyFilteredGenes.size()) + " genes remaining.");
-
-            BufferedReader reader = new BufferedReader(new FileReader(filteredFile));
-            String headerLine = reader.readLine();
-            String[] header = headerLine.split("\t");
-            String[] cellIDs = Arrays.copyOfRange(header, expressionColumnIndex, header.length);
-
-            
-            System.out.println("\n  Writing each remaining cell to unique tmp file, while ignoring globally eliminated genes.");
-            /* 
-             * Create writers for temporary files to build transposed matrix. Write each cell to 
-             * a unique file that can be accessed when transposing.
-             */
-            String tempDir = "temp_transpose_" + sampleName;
-            new File(tempDir).mkdir();
-            BufferedWriter[] tempWriters = new BufferedWriter[cellIDs.length];
-            for (int i = 0; i < cellIDs.length; i++) {
-                tempWriters[i] = new BufferedWriter(new FileWriter(tempDir + "/" + cellIDs[i] + ".tmp"));
-            }
+        AtomicInteger samplesTransposed = new AtomicInteger();
+        List<Callable<Void>> transposeTasks = new ArrayList<>();
+        for (SampleResult result : results) {
+            transposeTasks.add(() -> {
+                try {
+                    String key = options.checkpoint ? SampleCheckpoint.phase3Key(result, globallyFilteredGenes, geneIndex, options) : null;
+                    List<File> outputs = transposeOutputs(result.sampleName, options);
+                    if (options.resume && SampleCheckpoint.isPhase3Done(result, key, outputs)) {
+                        String tag = options.threads > 1 ? "[" + result.sampleName + "] " : "";
+                        System.out.println("\n" + tag + "♻️ Phase 3 outputs for " + result.sampleName + " are up to date; skipping.");
+                        result.filteredMatrix = null;
+                        return null;
+                    }
+                    SampleCheckpoint.phase3File(result.sampleName).delete();
+
+                    // A kept matrix is transposed within its reservation; otherwise the sample takes a share
+                    long share = result.filteredMatrix == null ? memoryBudget.acquire() : 0;
+                    try {
+                        transposeSample(result, globallyFilteredGenes, geneIndex, options, share, runMetrics);
+                    } finally {
+                        memoryBudget.release(share, 0);
+                    }
+                    if (options.checkpoint) {
+                        SampleCheckpoint.savePhase3(result, key, outputs);
+                    }
+                    samplesTransposed.incrementAndGet();
+                    return null;
+                } finally {
+                    memoryBudget.releaseKept(result.keptBytes);
+                }
+            });
+        }
+        runAll(transposeTasks, options.threads);
+
+        // Pipeline complete
+        long pipelineEnd = System.nanoTime();
+        if (options.incremental) {
+            long parsed = results.stream().filter(result -> !result.fromCheckpoint).count();
+            System.out.println("\n📦 Incremental update: parsed " + parsed + " of " + results.size() + " raw matrices and rewrote the transposed outputs of "
+                    + samplesTransposed.get() + " of " + results.size() + " samples.");
+        }
+        System.out.printf("\n🎉 Pipeline complete for all files in %.2f seconds\n", (pipelineEnd - pipelineStart) / 1_000_000_000.0);
+        metrics.close();
+    }
+
+
+    /*
+     * Phase 1 for one input file: remove low-depth cells, write the filtered
+     * matrix and removed-cells list, and count the cells expressing each gene.
+     * With singlePass, the raw matrix is read once and its rows kept in a
+     * SparseRowStore; otherwise it is read twice. Everything the task holds
+     * stays within memoryShareBytes (see MemoryBudget), and the filtered
+     * matrix is kept for Phase 3 only if its reservation (keptBytes) does.
+     */
+    static SampleResult filterSample(File inputFile, Options options, boolean singlePass, GeneIndex geneIndex, long memoryShareBytes,
+                                     ProcessingMetrics metrics) throws IOException {
+        String sampleName = sampleName(inputFile);
+        String tag = options.threads > 1 ? "[" + sampleName + "] " : ""; // Tell interleaved samples apart
+        boolean twoColumnHeader = options.twoColumnHeader;
+        int expressionColumnIndex = options.expressionColumnIndex();
+        double cellThreshold = options.cellThreshold;
+        long matrixBytes = memoryShareBytes - MemoryBudget.streamBufferBytes();   // The share less the parser and writer buffers
+
+        System.out.println("\n" + tag + "🔄 Starting file: " + sampleName);
+        long fileStart = System.nanoTime();
+
+        // Track filtered-out cells for this file
+        BufferedWriter filteredCellsWriter = new BufferedWriter(new FileWriter("removed_cells_" + sampleName + ".txt"));
+        filteredCellsWriter.write("CellID\tTotalReads\n");
+
+        int headerColumns = twoColumnHeader ? 2 : 1;     // <-- key branching logic
+
+        // First Pass: Compute total counts for each cell (sum columns)
+        ProcessingMetrics.Phase sumsPhase = metrics.startPhase(sampleName, "column_sums");
+        sumsPhase.watchOutput(new File("removed_cells_" + sampleName + ".txt"));
+        TabDelimitedParser parser = openMatrix(inputFile, headerColumns, options);
+        String[] header = parser.readHeader(); // Read header line to extract column identifiers
+
+        int numColumns = header.length - headerColumns;  // <-- adjusts based on header type
+//        int numColumns = header.length - 1;    // Deduct gene
+
+
+
+        /*
+         * Get cellIDs. If two-column header file, start at the third column (index 2)
+         */
+		String[] cellIDs = Arrays.copyOfRange(header, expressionColumnIndex, header.length); // Cell IDs
 
+        double[] columnSums = new double[numColumns]; // Initialize sums array
+        Arrays.fill(columnSums, 0.0);
 
-            /* 
-             * For current original input file, loop over its filtered file
-             * (the file excluding cells with <500 reads)
-             * and write each cell to its own file while skipping filtered genes
-             * (genes that were not expressed in at least 10 cells across all
-             * files).
+        System.out.println(tag + "  🔬 First pass: Computing column sums for " + numColumns + " cells...");
+
+        boolean chunked = singlePass && options.fileThreads > 1;
+        if (chunked && CompressedStreams.isCompressed(inputFile)) {
+            System.out.println(tag + "  🧵 " + inputFile.getName() + " is compressed and cannot be split into chunks; parsing it on one thread.");
+            chunked = false;
+        }
+
+        /*
+         * In single-pass mode, keep each row's nonzero values so the second
+         * pass can replay them instead of re-reading the raw matrix. The
+         * store shares the budget with the chunks being parsed.
+         */
+        long storeBytes = Math.max(0, matrixBytes - (chunked ? ChunkedMatrixParser.bufferedBytes(options.fileThreads) : 0));
+        SparseRowStore rowStore = singlePass
+                ? new SparseRowStore(headerColumns, numColumns, storeBytes, new File("."), "rows_" + sampleName + "_")
+                : null;
+
+        if (chunked) {
+            /*
+             * Parse newline-aligned chunks of the file in parallel; the rows
+             * are appended to the store (and its column sums) in file order.
+             * A matrix read twice is parsed on one thread here, and by the
+             * pipeline's parser workers in the second pass.
              */
-            int genesWritten = 0;
-            String line;
-            while ((line = reader.readLine()) != null) {
-                String[] fields = line.split("\t");
-//                String gene = fields[0]; // Get gene name
-                String gene = twoColumnHeader ? fields[0] + "|" + fields[1] : fields[0]; // Get gene name
-                if (globallyFilteredGenes.contains(gene)) {
-                    continue;  // Skip globally filtered gene
+            long dataStart = parser.offset();
+            parser.close();
+            new ChunkedMatrixParser(inputFile, dataStart, headerColumns, numColumns, options.fileThreads, ChunkedMatrixParser.DEFAULT_CHUNK_BYTES, options.mmap)
+                    .parseInto(rowStore, tag);
+            sumsPhase.setProgress(rowStore.rowCount(), inputFile.length() - dataStart);
+        } else {
+            // Stream through the file to compute column sums incrementally
+            int geneRows = 0;
+            while (parser.next()) {
+                double[] values = requireColumns(parser, numColumns, inputFile);
+                if (rowStore != null) {
+                    rowStore.addRow(parser); // Also adds the row's nonzeros to the store's column sums
+                } else {
+                    for (int i = 0; i < numColumns; i++) {
+                        columnSums[i] += values[i];
+                    }
                 }
-                for (int i = 0; i < cellIDs.length; i++) {
-                    tempWriters[i].write(fields[i + expressionColumnIndex]);
-                    tempWriters[i].newLine();
+                geneRows++;
+                if (geneRows % 1024 == 0) {
+                    sumsPhase.setProgress(geneRows, parser.offset());
                 }
-                genesWritten++;
-                if (genesWritten % 5000 == 0) {
-                    System.out.println("  Writing gene row: " + genesWritten);
+                if (geneRows % 5000 == 0) {
+                    System.out.println(tag + "    Processed " + geneRows + " gene rows...");
                 }
             }
-            reader.close();
-            for (BufferedWriter tempWriter : tempWriters) {
-                tempWriter.close();
+            sumsPhase.setProgress(geneRows, parser.offset());
+            sumsPhase.addReadNanos(parser.readNanos());
+            sumsPhase.addParseNanos(System.nanoTime() - sumsPhase.startNanos - parser.readNanos());
+            parser.close();
+        }
+        if (rowStore != null) {
+            columnSums = rowStore.columnSums();
+        }
+        System.out.println(tag + "  ✅ Finished computing column sums.");
+        if (rowStore != null && rowStore.hasSpilled()) {
+            System.out.printf("%s  💾 Sparse row store exceeded the memory budget; spilled %.1f MB to disk.\n", tag, rowStore.spilledBytes() / (1024.0 * 1024.0));
+        }
+
+        // Determine which cells to retain based on cellThreshold
+        List<Integer> retainedIndices = new ArrayList<>();
+		System.out.println(tag + "  ❌ Filtering low-count cells (< " + cellThreshold + " reads):");
+        int cellsFiltered = 0;
+        for (int i = 0; i < numColumns; i++) {
+            if (columnSums[i] >= cellThreshold) {
+                retainedIndices.add(i);
+            } else {
+                filteredCellsWriter.write(cellIDs[i] + "\t" + columnSums[i] + "\n");
+                cellsFiltered++;
             }
+        }
+        filteredCellsWriter.close();
+        sumsPhase.end();
+        System.out.println(tag + "  📊 Cells retained: " + retainedIndices.size() + " | Filtered out: " + cellsFiltered);
+
+        // Unboxed copy for the per-value loop below
+        int[] retained = retainedIndices.stream().mapToInt(Integer::intValue).toArray();
+
+
 
+        System.out.println(tag + "  🛠️ Second pass: Writing filtered matrix + counting gene expression...");
+
+        // Second Pass: Write filtered matrix + count gene expression
+        File filteredOutput = new File(sampleName + ".filtered_expression_matrix.txt" + (options.compressOutput ? ".gz" : ""));
+        MatrixTextWriter writer = openOutput(filteredOutput, options);
+        ProcessingMetrics.Phase filterPhase = metrics.startPhase(sampleName, "filter");
+        filterPhase.watchOutput(filteredOutput);
+
+//        writer.write(header[0]);  // Write gene name
+        writer.write(header[0]);
+        if (twoColumnHeader) {
+            writer.writeTab();
+            writer.write(header[1]);
+        }
+        for (int idx : retained) {
+            writer.writeTab();
+            writer.write(header[idx + expressionColumnIndex]);
+        }
+        writer.newLine();
+
+        GeneCounts genes = new GeneCounts();   // Gene IDs in file order and cells expressing each
+
+        /*
+         * In single-pass mode with everything in memory, restrict the sparse
+         * matrix to the retained cells and take the gene counts straight
+         * from it, if it fits in the budget next to the store.
+         */
+        SparseMatrix filteredMatrix = null;
+        boolean filterInMemory = rowStore != null && !rowStore.hasSpilled()
+                && rowStore.allocatedBytes() + SparseMatrix.estimatedBytes(rowStore.rowCount(), rowStore.nonzeroCount()) <= matrixBytes;
+        if (rowStore != null && !rowStore.hasSpilled() && !filterInMemory) {
+            System.out.println(tag + "  💾 The filtered matrix does not fit next to the row store in the memory budget; writing it from the stored rows.");
+        }
+        if (filterInMemory) {
+            filteredMatrix = rowStore.toMatrix().selectColumnsRounded(retained);
+            int[] counts = filteredMatrix.rowPositiveCounts();
+
+            GeneIndex.Keys keys = geneIndex.keys();
+            for (int r = 0; r < filteredMatrix.rows(); r++) {
+                genes.add(keys.id(rowStore.label(r, 0), twoColumnHeader ? rowStore.label(r, 1) : null, r), counts[r]);
+
+                writer.write(rowStore.label(r, 0));
+                if (twoColumnHeader) {
+                    writer.writeTab();
+                    writer.write(rowStore.label(r, 1));
+                }
+                writeSparseRow(writer, filteredMatrix, r); // Already rounded by selectColumnsRounded()
+                writer.newLine();
+
+                if (genes.size % 5000 == 0) {
+                    filterPhase.setProgress(genes.size, 0);
+                    System.out.println(tag + "    Processed " + genes.size + " genes...");
+                }
+            }
+            keys.finish(genes.genes);
+        } else if (rowStore != null) {
             /*
-             * Compose final transposed matrix from temporary files
+             * In single-pass mode, replay the (possibly spilled) stored rows
+             * instead of reading the file again.
              */
-            System.out.println("  📊 Writing final transposed matrix...");
+            SparseRowStore.RowCursor storedRows = rowStore.cursor();
+            double[] denseRow = new double[numColumns];
+            GeneIndex.Keys keys = geneIndex.keys();
+            while (storedRows.next()) {
+                String label0 = storedRows.label(0);
+                String label1 = twoColumnHeader ? storedRows.label(1) : null;
+                int expressedInCells = writeFilteredRow(writer, label0, label1, storedRows.toDense(denseRow), retained);
+                genes.add(keys.id(label0, label1, genes.size), expressedInCells);
+
+                if (genes.size % 5000 == 0) {
+                    filterPhase.setProgress(genes.size, 0);
+                    System.out.println(tag + "    Processed " + genes.size + " genes...");
+                }
+            }
+            keys.finish(genes.genes);
+            storedRows.close();
+        } else {
+            /*
+             * Otherwise begin file again and advance past header row. Parser
+             * workers format batches of filtered rows and count the cells
+             * expressing each gene; the batches are written here in file order.
+             */
+            try (RowPipeline<FilteredRows> pipeline = new RowPipeline<>(inputFile, headerColumns, options.fileThreads, options.mmap)) {
+                pipeline.readHeader();
+                RowPipeline.Stats stats = pipeline.run(
+                        rows -> filterRows(rows, numColumns, retained, twoColumnHeader, inputFile, geneIndex),
+                        batch -> {
+                            writer.write(batch.text, 0, batch.text.length);
+                            int before = genes.size;
+                            genes.addAll(batch.genes);
+                            for (int n = (before / 5000 + 1) * 5000; n <= genes.size; n += 5000) {
+                                System.out.println(tag + "    Processed " + n + " genes...");
+                            }
+                        }, filterPhase);
+                System.out.println(tag + "  🚰 " + stats);
+            }
+        }
+
+        if (rowStore != null) {
+            rowStore.close();
+            filterPhase.setProgress(genes.size, 0);
+        }
+        writer.close();
+        filterPhase.end();
+
+        System.out.println(tag + "  ✅ Filtered matrix written: " + filteredOutput.getName());
+
+        // Record metadata for downstream use
+        SampleResult result = new SampleResult();
+        result.inputFile = inputFile;
+        result.sampleName = sampleName;
+        result.filteredFile = filteredOutput;
+        result.geneOrder = Arrays.copyOf(genes.genes, genes.size);
+        result.expressedInCells = Arrays.copyOf(genes.counts, genes.size);
+        geneIndex.offerReference(result.geneOrder);    // Lets later samples match their rows by position
+        result.columnSums = columnSums;
+        result.retainedCells = retained;
+
+        /*
+         * Keep the filtered matrix for Phase 3 if the task's share has room
+         * for what Phase 3 holds of it (the matrix and its transposed copy)
+         * and its writers; otherwise Phase 3 re-reads the filtered file.
+         */
+        long keptBytes = filteredMatrix != null ? 2 * filteredMatrix.estimatedBytes() + MemoryBudget.streamBufferBytes() : 0;
+        if (filteredMatrix != null && keptBytes <= memoryShareBytes) {
+            result.filteredMatrix = filteredMatrix;
+            result.keptBytes = keptBytes;
+            result.retainedCellIDs = new String[retained.length];
+            for (int i = 0; i < retained.length; i++) {
+                result.retainedCellIDs[i] = cellIDs[retained[i]];
+            }
+        }
+
+        long fileEnd = System.nanoTime();
+        System.out.printf("%s⏱️ Completed file: %s in %.2f seconds\n", tag, sampleName, (fileEnd - fileStart) / 1_000_000_000.0);
+        return result;
+    }
+
+
+    /*
+     * Phase 3 for one input file: write the filtered matrix transposed (one
+     * row per cell) and/or as Matrix Market files, omitting globally filtered
+     * genes. A filtered matrix kept in memory is transposed within its
+     * reservation; otherwise the pipeline and transposer stay within
+     * memoryShareBytes.
+     */
+    static void transposeSample(SampleResult result, BitSet globallyFilteredGenes, GeneIndex geneIndex, Options options, long memoryShareBytes,
+                                ProcessingMetrics metrics) throws IOException {
+        String sampleName = result.sampleName;
+        String tag = options.threads > 1 ? "[" + sampleName + "] " : "";
+        int expressionColumnIndex = options.expressionColumnIndex();
+
+        System.out.println("\n" + tag + "🔄 Transposing filtered matrix for file: " + sampleName);
+        long transposeStart = System.nanoTime();
+
+        // Get file names for filtered file and gene order for each original input file
+        File filteredFile = result.filteredFile;
+        int[] geneOrder = result.geneOrder;
+
+        // There should be geneOrder.length - globallyFilteredGenes.size() genes printed,
+        // in the end. ChatGPT got this wrong originally. Was printing only oeneOrder.length
+        System.out.println("\n" + tag + "  There are " + (geneOrder.length - globallyFilteredGenes.cardinality()) + " genes remaining.");
+
+        /*
+         * Header row of the transposed matrix: the gene names, ignoring
+         * globallyFilteredGenes
+         */
+        List<String> remainingGenes = new ArrayList<>();
+        for (int gene : geneOrder) {
+            if (!globallyFilteredGenes.get(gene)) {
+                remainingGenes.add(geneIndex.name(gene));
+            }
+        }
+
+        /*
+         * The Matrix Market export is written gene by gene (features x
+         * barcodes), so it needs no transpose. Only the text and binary
+         * formats go through the transposer.
+         */
+        boolean transposed = options.outputFormats.contains("tsv") || options.outputFormats.contains("binary");
+        File mtxDirectory = mtxDirectory(sampleName);
+        ProcessingMetrics.Phase readPhase = metrics.startPhase(sampleName, "transpose_read");
+        if (options.outputFormats.contains("mtx")) {
+            readPhase.watchOutput(mtxDirectory);
+        }
+
+        /*
+         * Single-pass runs may still hold the filtered matrix in memory, in
+         * which case the transpose is just a CSR -> CSC index rearrangement
+         * and the filtered file is not read again.
+         */
+        SparseMatrix filteredMatrix = result.filteredMatrix;
+        result.filteredMatrix = null;
+        SparseMatrix cellsByGene = null;
+        BlockedTransposer transposer = null;
+        String[] cellIDs;
+        if (filteredMatrix != null) {
+            cellIDs = result.retainedCellIDs;
+            BitSet keptGenes = new BitSet(geneOrder.length);
+            for (int r = 0; r < geneOrder.length; r++) {
+                if (!globallyFilteredGenes.get(geneOrder[r])) {
+                    keptGenes.set(r);
+                }
+            }
+            SparseMatrix genesByCell = filteredMatrix.selectRows(keptGenes);
+            filteredMatrix = null;
+
+            if (options.outputFormats.contains("mtx")) {
+                System.out.println("\n" + tag + "  📊 Writing Matrix Market files from the in-memory sparse matrix to " + mtxDirectory.getName());
+                MatrixMarketWriter mtx = new MatrixMarketWriter(mtxDirectory, cellIDs, remainingGenes.toArray(new String[0]), options.twoColumnHeader);
+                mtx.addRows(genesByCell);
+                mtx.close();
+            }
+            if (transposed) {
+                System.out.println("\n" + tag + "  Transposing in-memory sparse matrix, while ignoring globally eliminated genes.");
+                cellsByGene = genesByCell.transpose();
+            }
+            readPhase.setProgress(genesByCell.rows(), 0);
+        } else {
+            try (RowPipeline<CentiRows> pipeline = new RowPipeline<>(filteredFile, expressionColumnIndex, options.fileThreads, options.mmap)) {
+                String[] header = pipeline.readHeader();
+                cellIDs = Arrays.copyOfRange(header, expressionColumnIndex, header.length);
+                int cellCount = cellIDs.length;
+
+                MatrixMarketWriter mtx = null;
+                if (options.outputFormats.contains("mtx")) {
+                    System.out.println("\n" + tag + "  📊 Writing Matrix Market files to " + mtxDirectory.getName());
+                    mtx = new MatrixMarketWriter(mtxDirectory, cellIDs, remainingGenes.toArray(new String[0]), options.twoColumnHeader);
+                }
+
+                if (transposed) {
+                    System.out.println("\n" + tag + "  Buffering remaining genes for transposition, while ignoring globally eliminated genes.");
+                    /*
+                     * Load the genes into the blocked transposer, which keeps them in
+                     * memory when they fit in the memory budget and otherwise spills
+                     * tiles to a single scratch file. It gets the share less the
+                     * pipeline's batches and the stream buffers.
+                     */
+                    long transposerBytes = Math.max(0, memoryShareBytes - MemoryBudget.streamBufferBytes() - RowPipeline.bufferedBytes(options.fileThreads));
+                    transposer = new BlockedTransposer(cellCount, transposerBytes, new File("."), "transpose_" + sampleName + "_");
+                }
+
+                /*
+                 * For current original input file, loop over its filtered file
+                 * (the file excluding cells with <500 reads)
+                 * and add each gene to the transposer while skipping filtered genes
+                 * (genes that were not expressed in at least 10 cells across all
+                 * files). Parser workers convert and filter batches of rows; they
+                 * are added here in file order.
+                 */
+                BlockedTransposer rowSink = transposer;
+                MatrixMarketWriter geneSink = mtx;
+                AtomicInteger genesWritten = new AtomicInteger();
+                RowPipeline.Stats stats = pipeline.run(
+                        rows -> keepRows(rows, cellCount, geneOrder, globallyFilteredGenes, filteredFile),
+                        batch -> {
+                            for (int r = 0; r < batch.rows; r++) {
+                                if (rowSink != null) {
+                                    if (batch.wideHundredths != null) {
+                                        rowSink.addRow(batch.wideHundredths, r * cellCount);
+                                    } else {
+                                        rowSink.addRow(batch.hundredths, r * cellCount);
+                                    }
+                                }
+                                if (geneSink != null) {
+                                    if (batch.wideHundredths != null) {
+                                        geneSink.addGene(batch.wideHundredths, r * cellCount);
+                                    } else {
+                                        geneSink.addGene(batch.hundredths, r * cellCount);
+                                    }
+                                }
+                                if (genesWritten.incrementAndGet() % 5000 == 0) {
+                                    System.out.println(tag + "  Buffered gene row: " + genesWritten.get());
+                                }
+                            }
+                        }, readPhase);
+                System.out.println(tag + "  🚰 " + stats);
+                if (mtx != null) {
+                    mtx.close();
+                }
+            }
+        }
+
+        readPhase.end();
+
+        if (!transposed) {
+            long exportEnd = System.nanoTime();
+            System.out.printf("%s  ✅ Matrix Market export complete for %s in %.2f seconds\n", tag, sampleName, (exportEnd - transposeStart) / 1_000_000_000.0);
+            return;
+        }
+
+        /*
+         * Compose final transposed matrix
+         */
+        System.out.println(tag + "  📊 Writing final transposed matrix" + (transposer != null && transposer.isExternal() ? " from scratch tiles..." : " from memory..."));
+
+        ProcessingMetrics.Phase writePhase = metrics.startPhase(sampleName, "transpose_write");
+        MatrixTextWriter writer = null;
+        if (options.outputFormats.contains("tsv")) {
+            File transposedFile = transposedTextFile(sampleName, options);
+            writer = openOutput(transposedFile, options);
+            writePhase.watchOutput(transposedFile);
 
-            BufferedWriter writer = new BufferedWriter(new FileWriter(sampleName + ".filtered_transposed_expression_matrix.txt"));
-            BufferedWriter debugWriter = new BufferedWriter(new FileWriter(sampleName + ".null_values.txt"));
-            
             /*
-             * Write header row, which is now the gene names
+             * The transposer cannot produce missing values, so this debug file
+             * stays empty. It is still created so the set of output files does
+             * not change.
              */
+            new FileWriter(nullValuesFile(sampleName)).close();
+
             writer.write("CellID");
-            for (String gene : geneOrder) {
-            	/*
-            	 * Ignore globallyFilteredGenes
-            	 */
-                if (!globallyFilteredGenes.contains(gene)) {
-                    writer.write("\t" + gene);
+            for (String gene : remainingGenes) {
+                writer.writeTab();
+                writer.write(gene);
+            }
+            writer.newLine();
+        }
+
+        BinaryMatrixWriter binary = null;
+        if (options.outputFormats.contains("binary")) {
+            File binaryFile = transposedBinaryFile(sampleName);
+            binary = new BinaryMatrixWriter(binaryFile, cellIDs, remainingGenes.toArray(new String[0]));
+            writePhase.watchOutput(binaryFile);
+        }
+
+        /*
+         * For each cell, write the values for all genes that were not
+         * globally filtered, in every requested format.
+         */
+        if (cellsByGene != null) {
+            if (writer != null) {
+                writeDenseRows(writer, cellsByGene, cellIDs, tag);
+            }
+            if (binary != null) {
+                binary.addRows(cellsByGene);
+            }
+            writePhase.setProgress(cellIDs.length, 0);
+        } else {
+            List<BlockedTransposer.CellSink> sinks = new ArrayList<>();
+            if (writer != null) {
+                sinks.add(BlockedTransposer.tsvSink(writer, cellIDs));
+            }
+            if (binary != null) {
+                sinks.add(binary);
+            }
+            transposer.transpose((cell, hundredths, offset, count) -> {
+                for (BlockedTransposer.CellSink sink : sinks) {
+                    sink.addCell(cell, hundredths, offset, count);
                 }
+                writePhase.addRows(1);
+            }, tag);
+            transposer.close(); // Deletes the scratch file, if one was needed
+        }
+        if (writer != null) {
+            writer.close();
+        }
+        if (binary != null) {
+            binary.close();
+        }
+        writePhase.end();
+
+        long transposeEnd = System.nanoTime();
+        System.out.printf("%s  ✅ Transposition complete for %s in %.2f seconds\n", tag, sampleName, (transposeEnd - transposeStart) / 1_000_000_000.0);
+    }
+
+
+
+    /*
+     * Run the per-sample tasks on up to threads threads and return their
+     * results in task order. With one thread the tasks simply run in order
+     * on the calling thread.
+     */
+    static <T> List<T> runAll(List<Callable<T>> tasks, int threads) throws IOException {
+        List<T> results = new ArrayList<>();
+        if (threads <= 1) {
+            for (Callable<T> task : tasks) {
+                try {
+                    results.add(task.call());
+                } catch (IOException | RuntimeException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new IOException(e);
+                }
+            }
+            return results;
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<T>> futures = new ArrayList<>();
+            for (Callable<T> task : tasks) {
+                futures.add(pool.submit(task));
+            }
+            for (Future<T> future : futures) {
+                results.add(future.get());
+            }
+            return results;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
             }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for sample tasks");
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /*
+     * Sample name of an input file: its name without .txt or .txt.gz.
+     */
+    static String sampleName(File inputFile) {
+        String name = inputFile.getName();
+        if (name.endsWith(".gz")) {
+            name = name.substring(0, name.length() - ".gz".length());
+        }
+        return name.replace(".txt", "");
+    }
+
+    /*
+     * Phase 3 output files of a sample.
+     */
+    static File transposedTextFile(String sampleName, Options options) {
+        return new File(sampleName + ".filtered_transposed_expression_matrix.txt" + (options.compressOutput ? ".gz" : ""));
+    }
+
+    static File transposedBinaryFile(String sampleName) {
+        return new File(sampleName + ".filtered_transposed_expression_matrix.bin");
+    }
+
+    static File mtxDirectory(String sampleName) {
+        return new File(sampleName + ".filtered_mtx");
+    }
+
+    static File nullValuesFile(String sampleName) {
+        return new File(sampleName + ".null_values.txt");
+    }
+
+    /*
+     * Everything Phase 3 writes for a sample with the requested output formats.
+     */
+    static List<File> transposeOutputs(String sampleName, Options options) {
+        List<File> outputs = new ArrayList<>();
+        if (options.outputFormats.contains("tsv")) {
+            outputs.add(transposedTextFile(sampleName, options));
+            outputs.add(nullValuesFile(sampleName));
+        }
+        if (options.outputFormats.contains("binary")) {
+            outputs.add(transposedBinaryFile(sampleName));
+        }
+        if (options.outputFormats.contains("mtx")) {
+            outputs.add(mtxDirectory(sampleName));
+        }
+        return outputs;
+    }
+
+    /*
+     * Open a tab-delimited matrix for parsing. gzip files are inflated on a
+     * read-ahead thread; plain files are read through memory-mapped windows
+     * with --mmap and through a FileInputStream otherwise.
+     */
+    static TabDelimitedParser openMatrix(File file, int labelColumns, Options options) throws IOException {
+        if (options.mmap && !CompressedStreams.isCompressed(file)) {
+            return TabDelimitedParser.mapped(file, labelColumns);
+        }
+        return new TabDelimitedParser(CompressedStreams.openInput(file), labelColumns);
+    }
+
+    /*
+     * Open an output matrix for writing, gzip-compressed on a background
+     * thread with --compress-output.
+     */
+    static MatrixTextWriter openOutput(File file, Options options) throws IOException {
+        return new MatrixTextWriter(CompressedStreams.openOutput(file, options.compressOutput));
+    }
+
+    /*
+     * Format an already rounded value the way the filtered matrices store it:
+     * whole numbers without a decimal point, everything else with two decimals.
+     * MatrixTextWriter.writeCenti() writes the same text without allocating;
+     * this is the reference it falls back to.
+     */
+    static String formatValue(double value) {
+        return value == (long) value ? String.valueOf((long) value) : String.format("%.2f", value);
+    }
+
+    /*
+     * Write each row of a sparse matrix as a dense line: the row's label, then
+     * a tab and the value of every column (zeros included).
+     */
+    static void writeDenseRows(MatrixTextWriter writer, SparseMatrix matrix, String[] rowLabels, String tag) throws IOException {
+        for (int r = 0; r < matrix.rows(); r++) {
+            writer.write(rowLabels[r]);
+            writeSparseRow(writer, matrix, r);
             writer.newLine();
+            if ((r + 1) % 5000 == 0) {
+                System.out.println(tag + "  Completed " + (r + 1) + " of " + matrix.rows() + " transposed rows.");
+            }
+        }
+    }
+
+    /*
+     * Write a tab and the value of every column of row r (zeros included).
+     * Values must already be rounded to two decimals.
+     */
+    static void writeSparseRow(MatrixTextWriter writer, SparseMatrix matrix, int r) throws IOException {
+        int[] indices = matrix.columnIndices();
+        double[] values = matrix.values();
+        int next = matrix.rowStart(r);
+        int end = matrix.rowEnd(r);
+        for (int c = 0; c < matrix.columns(); c++) {
+            writer.writeTab();
+            if (next < end && indices[next] == c) {
+                writer.writeValue(values[next++]);
+            } else {
+                writer.writeCenti(0);
+            }
+        }
+    }
+
+    /*
+     * Write one row of the filtered matrix: its labels (label1 is null for
+     * one-column files), then the retained cells' values rounded to two
+     * decimals. Returns the number of retained cells expressing the gene.
+     */
+    static int writeFilteredRow(MatrixTextWriter writer, String label0, String label1, double[] values, int[] retained) throws IOException {
+        int expressedInCells = 0;
+
+//        writer.write(fields[0]);
+        writer.write(label0);
+        if (label1 != null) {
+            writer.writeTab();
+            writer.write(label1);
+        }
+
+        /*
+         * Print all of the expression values
+         */
+        for (int idx : retained) {
+
+        	/*
+        	 * Round to two decimals before assessing if it's a whole
+        	 * number and printing. A lot of numbers are N.000001. I want
+        	 * those to round to the whole number and then be printed as
+        	 * a whole number in the next line of code.
+        	 */
+
+			long hundredths = Math.round(values[idx] * 100.0);
+            // writer.write("\t" + value);
+
+			// If it's a whole number, don't print the .0 to save space
+			writer.writeTab();
+			writer.writeCenti(hundredths);
+
+            if (hundredths > 0) {
+                expressedInCells++;
+            }
+        }
+        writer.newLine();
+        return expressedInCells;
+    }
+
+    /*
+     * Pipeline worker for the Phase 1 second pass: format a batch of raw rows
+     * as filtered-matrix lines and count the cells expressing each gene.
+     */
+    static FilteredRows filterRows(TabDelimitedParser rows, int numColumns, int[] retained, boolean twoColumnHeader,
+            File inputFile, GeneIndex geneIndex) throws IOException {
+        ByteArrayOutputStream text = new ByteArrayOutputStream(RowPipeline.BATCH_BYTES);
+        MatrixTextWriter writer = new MatrixTextWriter(text);
+        FilteredRows batch = new FilteredRows();
+        batch.genes = new GeneCounts();
+        GeneIndex.Keys keys = geneIndex.keys();
+        while (rows.next()) {
+            double[] values = requireColumns(rows, numColumns, inputFile);
 
             /*
-             * For each cell, write the values for all genes, ignoring those that
-             * were globally filtered.
+             * If a two-column header file, use both gene name and tx ID as
+             * geneName. Rows in the reference gene order get their ID
+             * without building it.
              */
-            for (int i = 0; i < cellIDs.length; i++) {
-                writer.write(cellIDs[i]); // Write the cell ID (first item in row, which will form the header column)
-                
-                /*
-                 * Open the temp file containing gene expression values for this cell
-                 */
-                BufferedReader tempReader = new BufferedReader(new FileReader(tempDir + "/" + cellIDs[i] + ".tmp"));
-                int geneCount = 0;
-                String value;
-                
-                /*
-                 * For each gene found in the original file, print gene expression
-                 * values for genes that were not globally excluded.
-                 */
-                for (String gene : geneOrder) {
-                	geneCount++;
-                    if (globallyFilteredGenes.contains(gene)) {
-                    	
-                    	/*
-                    	 * ChatGPT originally advanced the reader to the next line
-                    	 * if the gene was globally filtered, but the files we're 
-                    	 * reading from already do not have these values in them
-                    	 * because the globally filtered. This should be why we
-                    	 * were getting null values. i.e., the reader gets out
-                    	 * of sync by advancing when it does not. readLine() returns
-                    	 * null when it runs out of text.
-                    	 */
-//                        tempReader.readLine(); 
-                        continue;
-                    }
-                    value = tempReader.readLine();
-                    
-                    if (value == null) {
-                    	System.out.println("ERROR: tmpeReader.readLine() returned null."); 
-                    	System.exit(-1);
-                    }
-                    writer.write("\t" + value);
-                    
-                    if(null == value) {
-                    	debugWriter.write("Gene count: " + geneCount + "; Gene: " + gene + "; Value: " + value + "\n");
+            int gene = keys.id(rows, (int) (rows.lineNumber() - 2));
+            int expressedInCells = writeFilteredRow(writer, rows.label(0), twoColumnHeader ? rows.label(1) : null, values, retained);
+            batch.genes.add(gene, expressedInCells);
+        }
+        keys.finish(batch.genes.genes);
+        writer.flush();
+        batch.text = text.toByteArray();
+        return batch;
+    }
+
+    /*
+     * Pipeline worker for Phase 3: convert a batch of filtered-file rows to
+     * hundredths, dropping globally filtered genes. The filtered file's data
+     * rows start on line 2 and are in geneOrder.
+     */
+    static CentiRows keepRows(TabDelimitedParser rows, int cellCount, int[] geneOrder, BitSet globallyFilteredGenes, File filteredFile) throws IOException {
+        CentiRows batch = new CentiRows();
+        batch.hundredths = new int[64 * Math.max(cellCount, 1)];
+        while (rows.next()) {
+            double[] values = requireColumns(rows, cellCount, filteredFile);
+//            String gene = fields[0]; // Get gene name
+            int gene = geneOrder[(int) (rows.lineNumber() - 2)]; // Get gene ID
+            if (globallyFilteredGenes.get(gene)) {
+                continue;  // Skip globally filtered gene
+            }
+            int offset = batch.rows * cellCount;
+            int capacity = batch.wideHundredths != null ? batch.wideHundredths.length : batch.hundredths.length;
+            if (offset + cellCount > capacity) {
+                capacity = Math.max(2 * capacity, offset + cellCount);
+                if (batch.wideHundredths != null) {
+                    batch.wideHundredths = Arrays.copyOf(batch.wideHundredths, capacity);
+                } else {
+                    batch.hundredths = Arrays.copyOf(batch.hundredths, capacity);
+                }
+            }
+            for (int i = 0; i < cellCount; i++) {
+                long hundredths = Math.round(values[i] * 100.0); // Values were already rounded in Phase 1
+                if (batch.wideHundredths == null && (hundredths > Integer.MAX_VALUE || hundredths < Integer.MIN_VALUE)) {
+                    batch.wideHundredths = new long[batch.hundredths.length];
+                    for (int j = 0; j < offset + i; j++) {
+                        batch.wideHundredths[j] = batch.hundredths[j];
                     }
+                    batch.hundredths = null;
                 }
-                tempReader.close();
-                writer.newLine();
-                if ((i + 1) % 5000 == 0) {
-                    System.out.println("  Completed " + (i + 1) + " of " + cellIDs.length + " transposed rows.");
+                if (batch.wideHundredths != null) {
+                    batch.wideHundredths[offset + i] = hundredths;
+                } else {
+                    batch.hundredths[offset + i] = (int) hundredths;
                 }
             }
-            writer.close();
-            debugWriter.close();
-
-            // Clean up temporary files
-            for (File file : new File(tempDir).listFiles()) {
-//                file.delete();
-            }
-//            new File(tempDir).delete();
-
-            long transposeEnd = System.nanoTime();
-            System.out.printf("  ✅ Transposition complete for %s in %.2f seconds\n", sampleName, (transposeEnd - transposeStart) / 1_000_000_000.0);
+            batch.rows++;
         }
+        return batch;
+    }
 
-        // Pipeline complete
-        long pipelineEnd = System.nanoTime();
-        System.out.printf("\n🎉 Pipeline complete for all files in %.2f seconds\n", (pipelineEnd - pipelineStart) / 1_000_000_000.0);
+    /*
+     * Return the parsed values of the parser's current row, failing with the
+     * file name and line number if the row has fewer than the expected number
+     * of expression columns.
+     */
+    static double[] requireColumns(TabDelimitedParser parser, int numColumns, File file) throws IOException {
+        if (parser.valueCount() < numColumns) {
+            throw new IOException(file.getName() + " line " + parser.lineNumber() + ": expected " + numColumns
+                    + " expression values but found " + parser.valueCount());
+        }
+        return parser.values();
     }
-    
 
-    
     /*
-     * Verify all arrays are identical
+     * Verify all files have identical gene orders. Orders are compared as
+     * GeneIndex ID sequences (equal IDs mean equal gene keys), with the first
+     * file as the reference.
      */
-    public static boolean areAllArraysIdentical(Map<File, String[]> map) {
+    public static boolean areAllGeneOrdersIdentical(List<SampleResult> results, GeneIndex geneIndex) {
 
     	/*
-    	 * If no arrays provided, throw error
+    	 * If no gene orders provided, throw error
     	 */
-    	if (map == null || map.isEmpty()) {
+    	if (results == null || results.isEmpty()) {
     		System.out.println("No arrays provided!");
     		return false;
     	}
 
-    	File referenceFile = map.keySet().iterator().next();
-    	String[] referenceArray = map.get(referenceFile);
+    	SampleResult reference = results.get(0);
+    	int[] referenceArray = reference.geneOrder;
 
-    	for (Map.Entry<File, String[]> entry : map.entrySet()) {
-    		File currentFile = entry.getKey();
-    		String[] currentArray = entry.getValue();
+    	for (SampleResult current : results) {
+    		int[] currentArray = current.geneOrder;
+    		if (Arrays.equals(referenceArray, currentArray)) {
+    			continue;
+    		}
 
     		if (referenceArray.length != currentArray.length) {
     			System.out.println("Mismatch in length. \n" +
-    					referenceFile.getName() + " length: " + referenceArray.length + "\n" +
-    					currentFile.getName() + " length: " + currentArray.length);
+    					reference.inputFile.getName() + " length: " + referenceArray.length + "\n" +
+    					current.inputFile.getName() + " length: " + currentArray.length);
     			return false;
     		}
 
     		for (int i = 0; i < referenceArray.length; i++) {
-    			if (!referenceArray[i].equals(currentArray[i])) {
-    				System.out.println("Mismatch in file: " + currentFile.getName() + " at index " + i);
+    			if (referenceArray[i] != currentArray[i]) {
+    				System.out.println("Mismatch in file: " + current.inputFile.getName() + " at index " + i);
 
     				System.out.println("Mismatch in order or gene name at index " + i + ". \n" +
-    						referenceFile.getName() + " gene: " + referenceArray[i] + "\n" +
-    						currentFile.getName() + " gene: " + currentArray[i]);
+    						reference.inputFile.getName() + " gene: " + geneIndex.name(referenceArray[i]) + "\n" +
+    						current.inputFile.getName() + " gene: " + geneIndex.name(currentArray[i]));
     				return false;
     			}
     		}
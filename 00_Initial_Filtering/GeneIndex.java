@@ -0,0 +1,174 @@
+// -*- coding: utf-8 -*-
+// package ebbertLab.expressionMatrixProcessor;
+
+import java.nio.charset.Charset;
+import java.util.*;
+
+/*
+ * Dictionary assigning every gene (or isoform) key a dense int ID, shared by
+ * all samples. Per-sample gene orders, global expressing-cell counts and the
+ * set of globally filtered genes are then int[] / BitSet structures indexed
+ * by ID, and each distinct key String is kept once for the whole run.
+ *
+ * IDs are handed out in the order keys are first interned, which depends on
+ * thread scheduling when samples run concurrently; anything written to disk
+ * must be ordered by the samples' gene orders, not by ID.
+ *
+ * Samples of a cohort nearly always list their genes in the same order, so
+ * the first sample to finish Phase 1 becomes the reference order. Rows are
+ * resolved through a Keys batch, which compares each row's label bytes with
+ * the reference gene at the same position and only builds and interns the
+ * key (under the lock, once per batch) when they differ.
+ */
+public class GeneIndex {
+
+    private final Map<String, Integer> ids = new HashMap<>();
+    private String[] names = new String[1024];
+    private int size;
+
+    private volatile Reference reference;   // null until a sample's gene order is offered
+
+    /*
+     * A gene order with each gene's key, also encoded as the parser's raw
+     * bytes.
+     */
+    private static class Reference {
+        final int[] ids;
+        final String[] names;
+        final byte[][] keys;
+
+        Reference(int[] ids, String[] names, byte[][] keys) {
+            this.ids = ids;
+            this.names = names;
+            this.keys = keys;
+        }
+    }
+
+    /*
+     * ID of key, assigning the next free ID if key is new.
+     */
+    public synchronized int intern(String key) {
+        Integer id = ids.get(key);
+        if (id != null) {
+            return id;
+        }
+        if (size == names.length) {
+            names = Arrays.copyOf(names, size * 2);
+        }
+        names[size] = key;
+        ids.put(key, size);
+        return size++;
+    }
+
+    /*
+     * Key of an interned ID.
+     */
+    public synchronized String name(int id) {
+        return names[id];
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    /*
+     * Make geneOrder (IDs in file order) the reference order, unless another
+     * sample's already is.
+     */
+    public void offerReference(int[] geneOrder) {
+        if (reference != null) {
+            return;
+        }
+        synchronized (this) {
+            if (reference != null) {
+                return;
+            }
+            Charset charset = Charset.defaultCharset();     // As in TabDelimitedParser
+            String[] orderNames = new String[geneOrder.length];
+            byte[][] keys = new byte[geneOrder.length][];
+            for (int g = 0; g < geneOrder.length; g++) {
+                orderNames[g] = names[geneOrder[g]];
+                keys[g] = orderNames[g].getBytes(charset);
+            }
+            reference = new Reference(geneOrder.clone(), orderNames, keys);
+        }
+    }
+
+    /*
+     * Resolver for the gene keys of a run of rows, used by one thread.
+     */
+    public Keys keys() {
+        return new Keys();
+    }
+
+    /*
+     * Resolves the gene keys of consecutive rows (one pipeline batch, or a
+     * whole stored sample) to IDs. id() returns each row's ID, or -1 if the
+     * row is not the reference gene at its position; finish() then interns
+     * those rows' keys together and fills in their IDs.
+     */
+    public class Keys {
+        private final Reference reference = GeneIndex.this.reference;
+        private int rows;
+        private String[] pendingKeys = new String[16];
+        private int[] pendingRows = new int[16];
+        private int pending;
+
+        /*
+         * ID of the parser's current row, data row number position of its
+         * file (0-based), or -1 until finish().
+         */
+        public int id(TabDelimitedParser row, int position) {
+            if (reference != null && position < reference.ids.length && row.geneNameEquals(reference.keys[position])) {
+                rows++;
+                return reference.ids[position];
+            }
+            return defer(row.geneName());
+        }
+
+        /*
+         * As id(TabDelimitedParser, int), for a row whose label columns are
+         * already Strings (label1 is null for one-column files).
+         */
+        public int id(String label0, String label1, int position) {
+            if (reference != null && position < reference.ids.length) {
+                String name = reference.names[position];
+                boolean matches = label1 == null ? name.equals(label0)
+                        : name.length() == label0.length() + 1 + label1.length() && name.startsWith(label0)
+                                && name.charAt(label0.length()) == '|' && name.endsWith(label1);
+                if (matches) {
+                    rows++;
+                    return reference.ids[position];
+                }
+            }
+            return defer(label1 == null ? label0 : label0 + "|" + label1);
+        }
+
+        /*
+         * Intern the deferred keys and store their IDs in genes, indexed by
+         * the order id() was called in.
+         */
+        public void finish(int[] genes) {
+            if (pending == 0) {
+                return;
+            }
+            synchronized (GeneIndex.this) {
+                for (int i = 0; i < pending; i++) {
+                    genes[pendingRows[i]] = intern(pendingKeys[i]);
+                }
+            }
+            pending = 0;
+        }
+
+        private int defer(String key) {
+            if (pending == pendingKeys.length) {
+                pendingKeys = Arrays.copyOf(pendingKeys, pending * 2);
+                pendingRows = Arrays.copyOf(pendingRows, pending * 2);
+            }
+            pendingKeys[pending] = key;
+            pendingRows[pending] = rows++;
+            pending++;
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,140 @@
+// -*- coding: utf-8 -*-
+// package ebbertLab.expressionMatrixProcessor;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.zip.GZIPOutputStream;
+
+/*
+ * Writes a filtered gene x cell matrix as the gzip-compressed Matrix Market
+ * triple of the 10x Genomics v3 layout, which scanpy.read_10x_mtx and
+ * Seurat's Read10X read from the directory:
+ *
+ *     matrix.mtx.gz      coordinate format, features (genes) as rows and
+ *                        barcodes (cells) as columns, 1-based, nonzeros only
+ *     barcodes.tsv.gz    one cell ID per line
+ *     features.tsv.gz    ID, gene name and "Gene Expression" per line. The ID
+ *                        is the gene key used in the other outputs
+ *                        ("col0|col1" for two-column input); the name is the
+ *                        last label column.
+ *
+ * Genes are added in order, so entries come out sorted by row without
+ * transposing anything. The number of nonzeros is only known at the end, so
+ * the entries are compressed into a part file as they arrive, and close()
+ * writes matrix.mtx.gz as a gzip member holding the banner and size line
+ * followed by the part file's bytes as a second member. Gzip readers
+ * (including zcat, Python's gzip and R's gzfile) read concatenated members
+ * as one stream.
+ */
+public class MatrixMarketWriter implements Closeable {
+
+    private static final String BANNER = "%%MatrixMarket matrix coordinate real general\n";
+
+    private final File matrixFile;
+    private final File entriesFile;
+    private final MatrixTextWriter entries;
+    private final int cellCount;
+    private final int geneCount;
+    private int genesWritten;
+    private long nonzeros;
+
+    public MatrixMarketWriter(File directory, String[] cellIDs, String[] geneIDs, boolean twoColumnHeader) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create directory " + directory);
+        }
+        this.cellCount = cellIDs.length;
+        this.geneCount = geneIDs.length;
+
+        try (BufferedWriter barcodes = openText(new File(directory, "barcodes.tsv.gz"))) {
+            for (String cell : cellIDs) {
+                barcodes.write(cell);
+                barcodes.newLine();
+            }
+        }
+        try (BufferedWriter features = openText(new File(directory, "features.tsv.gz"))) {
+            for (String gene : geneIDs) {
+                String name = twoColumnHeader ? gene.substring(gene.lastIndexOf('|') + 1) : gene;
+                features.write(gene + "\t" + name + "\tGene Expression");
+                features.newLine();
+            }
+        }
+
+        this.matrixFile = new File(directory, "matrix.mtx.gz");
+        this.entriesFile = new File(directory, "matrix.mtx.gz.part");
+        this.entries = new MatrixTextWriter(CompressedStreams.openOutput(entriesFile, true));
+    }
+
+    /*
+     * Add the next gene from its dense values over all cells, in hundredths,
+     * starting at hundredths[offset]. Zeros are skipped.
+     */
+    public void addGene(int[] hundredths, int offset) throws IOException {
+        genesWritten++;
+        for (int c = 0; c < cellCount; c++) {
+            if (hundredths[offset + c] != 0) {
+                writeEntry(c, hundredths[offset + c]);
+            }
+        }
+    }
+
+    public void addGene(long[] hundredths, int offset) throws IOException {
+        genesWritten++;
+        for (int c = 0; c < cellCount; c++) {
+            if (hundredths[offset + c] != 0) {
+                writeEntry(c, hundredths[offset + c]);
+            }
+        }
+    }
+
+    /*
+     * Add every row of a gene x cell sparse matrix as the next genes.
+     */
+    public void addRows(SparseMatrix genesByCell) throws IOException {
+        int[] indices = genesByCell.columnIndices();
+        double[] values = genesByCell.values();
+        for (int r = 0; r < genesByCell.rows(); r++) {
+            genesWritten++;
+            for (int i = genesByCell.rowStart(r); i < genesByCell.rowEnd(r); i++) {
+                writeEntry(indices[i], Math.round(values[i] * 100.0));
+            }
+        }
+    }
+
+    /*
+     * Write matrix.mtx.gz: the header, now that the number of nonzeros is
+     * known, then the compressed entries.
+     */
+    @Override
+    public void close() throws IOException {
+        entries.close();
+        if (genesWritten != geneCount) {
+            entriesFile.delete();
+            throw new IOException("Matrix Market export expected " + geneCount + " genes but " + genesWritten + " were added");
+        }
+        try (OutputStream out = new FileOutputStream(matrixFile)) {
+            GZIPOutputStream header = new GZIPOutputStream(out);
+            header.write((BANNER + geneCount + " " + cellCount + " " + nonzeros + "\n").getBytes(StandardCharsets.US_ASCII));
+            header.finish();
+            Files.copy(entriesFile.toPath(), out);
+        }
+        Files.delete(entriesFile.toPath());
+    }
+
+    private void writeEntry(int cell, long hundredths) throws IOException {
+        entries.writeLong(genesWritten);
+        entries.write(' ');
+        entries.writeLong(cell + 1);
+        entries.write(' ');
+        entries.writeCentiRoot(hundredths);
+        entries.write('\n');
+        nonzeros++;
+    }
+
+    /*
+     * Gzip-compressed text file, in the platform charset (as FileWriter).
+     */
+    private static BufferedWriter openText(File file) throws IOException {
+        return new BufferedWriter(new OutputStreamWriter(CompressedStreams.openOutput(file, true)));
+    }
+}
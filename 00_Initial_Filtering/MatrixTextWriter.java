@@ -0,0 +1,240 @@
+// -*- coding: utf-8 -*-
+// package ebbertLab.expressionMatrixProcessor;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/*
+ * Buffered writer for the tab-delimited matrix outputs (filtered and
+ * transposed matrices, Matrix Market entries).
+ *
+ * Expression values are written as fixed-point numbers straight into a
+ * reusable byte buffer: writeCenti() takes a value in hundredths and emits
+ * the same text ExpressionMatrixProcessor.formatValue() produces for
+ * hundredths / 100.0 (whole numbers without a decimal point, everything else
+ * with exactly two decimals), without going through String.format(),
+ * StringBuilder or boxing. Labels are encoded with the default charset, as
+ * FileWriter did.
+ *
+ * The fast path is only used where it is provably identical to the old
+ * output: for |hundredths / 100| < 2^46, where neighbouring hundredths are
+ * still distinct doubles so "%.2f" prints exactly their digits, and only if
+ * the default locale formats "%.2f" with ASCII digits, '-' and '.'. Anything
+ * else falls back to formatValue(). writeCentiRoot() prints the same digits
+ * but never depends on the locale, for the Matrix Market entries.
+ */
+public class MatrixTextWriter implements Closeable, Flushable {
+
+    static final int DEFAULT_BUFFER_SIZE = 1 << 16;
+    static final long MAX_EXACT_CENTI = 100L << 46;   // Below 2^46 doubles are spaced < 0.01 apart
+    private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes(StandardCharsets.US_ASCII);
+
+    /*
+     * True if String.format("%.2f") in the default locale is plain ASCII
+     * fixed-point, which is what writeCenti() reproduces.
+     */
+    private static final boolean FAST_FORMAT = String.format("%.2f", -1234.5).equals("-1234.50");
+
+    private final OutputStream out;
+    private final Charset charset = Charset.defaultCharset(); // Same charset FileWriter used
+    private final boolean asciiCompatible;
+    private final byte[] buffer;
+    private int count;
+
+    public MatrixTextWriter(OutputStream out) {
+        this(out, DEFAULT_BUFFER_SIZE);
+    }
+
+    public MatrixTextWriter(OutputStream out, int bufferSize) {
+        this.out = out;
+        this.buffer = new byte[Math.max(bufferSize, 64)];
+        String probe = "\t|_-.0123456789AZaz";
+        this.asciiCompatible = new String(probe.getBytes(charset), StandardCharsets.US_ASCII).equals(probe);
+    }
+
+    /*
+     * Write text (a label or header field).
+     */
+    public void write(String text) throws IOException {
+        int length = text.length();
+        if (asciiCompatible && length <= buffer.length) {
+            if (count + length > buffer.length) {
+                flushBuffer();
+            }
+            int start = count;
+            for (int i = 0; i < length; i++) {
+                char c = text.charAt(i);
+                if (c >= 0x80) {
+                    count = start;
+                    writeBytes(text.getBytes(charset));
+                    return;
+                }
+                buffer[count++] = (byte) c;
+            }
+            return;
+        }
+        writeBytes(text.getBytes(charset));
+    }
+
+    /*
+     * Write already encoded bytes, e.g. rows formatted by another writer.
+     */
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        if (length > buffer.length - count) {
+            flushBuffer();
+            if (length > buffer.length) {
+                out.write(bytes, offset, length);
+                return;
+            }
+        }
+        System.arraycopy(bytes, offset, buffer, count, length);
+        count += length;
+    }
+
+    /*
+     * Write a single ASCII character such as '\t' or '\n'.
+     */
+    public void write(char c) throws IOException {
+        if (count == buffer.length) {
+            flushBuffer();
+        }
+        buffer[count++] = (byte) c;
+    }
+
+    public void writeTab() throws IOException {
+        write('\t');
+    }
+
+    /*
+     * Write the platform line separator, like BufferedWriter.newLine().
+     */
+    public void newLine() throws IOException {
+        writeBytes(LINE_SEPARATOR);
+    }
+
+    /*
+     * Write a whole number.
+     */
+    public void writeLong(long value) throws IOException {
+        if (count + 20 > buffer.length) {
+            flushBuffer();
+        }
+        if (value < 0) {
+            if (value == Long.MIN_VALUE) {
+                write(String.valueOf(value));
+                return;
+            }
+            buffer[count++] = '-';
+            value = -value;
+        }
+        writeDigits(value);
+    }
+
+    /*
+     * Write hundredths / 100.0 the way formatValue() does: "12" for 1200,
+     * "12.50" for 1250, "-0.05" for -5.
+     */
+    public void writeCenti(long hundredths) throws IOException {
+        if (!FAST_FORMAT || hundredths >= MAX_EXACT_CENTI || hundredths <= -MAX_EXACT_CENTI) {
+            write(ExpressionMatrixProcessor.formatValue(hundredths / 100.0));
+            return;
+        }
+        writeFixedPoint(hundredths);
+    }
+
+    /*
+     * As writeCenti(), but formatted as in Locale.ROOT whatever the default
+     * locale is, for files such as matrix.mtx that are always read with a
+     * '.' decimal separator.
+     */
+    public void writeCentiRoot(long hundredths) throws IOException {
+        if (hundredths >= MAX_EXACT_CENTI || hundredths <= -MAX_EXACT_CENTI) {
+            double value = hundredths / 100.0;
+            write(value == (long) value ? String.valueOf((long) value) : String.format(Locale.ROOT, "%.2f", value));
+            return;
+        }
+        writeFixedPoint(hundredths);
+    }
+
+    /*
+     * Write a value that is already rounded to two decimals.
+     */
+    public void writeValue(double value) throws IOException {
+        writeCenti(Math.round(value * 100.0));
+    }
+
+    /*
+     * The fast path of writeCenti(), for |hundredths| < MAX_EXACT_CENTI.
+     */
+    private void writeFixedPoint(long hundredths) throws IOException {
+        if (count + 24 > buffer.length) {
+            flushBuffer();
+        }
+        if (hundredths < 0) {
+            buffer[count++] = '-';
+            hundredths = -hundredths;
+        }
+        long whole = hundredths / 100;
+        int fraction = (int) (hundredths - whole * 100);
+        writeDigits(whole);
+        if (fraction != 0) {
+            buffer[count++] = '.';
+            buffer[count++] = (byte) ('0' + fraction / 10);
+            buffer[count++] = (byte) ('0' + fraction % 10);
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        flushBuffer();
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flushBuffer();
+        } finally {
+            out.close();
+        }
+    }
+
+    /*
+     * Digits of a non-negative number; the caller has made room for 20 bytes.
+     */
+    private void writeDigits(long value) {
+        if (value < 10) {
+            buffer[count++] = (byte) ('0' + value);
+            return;
+        }
+        int end = count + digitCount(value);
+        int position = end;
+        while (value != 0) {
+            long quotient = value / 10;
+            buffer[--position] = (byte) ('0' + (value - quotient * 10));
+            value = quotient;
+        }
+        count = end;
+    }
+
+    private static int digitCount(long value) {
+        int digits = 1;
+        for (long limit = 10; digits < 19 && value >= limit; limit *= 10) {
+            digits++;
+        }
+        return digits;
+    }
+
+    private void writeBytes(byte[] bytes) throws IOException {
+        write(bytes, 0, bytes.length);
+    }
+
+    private void flushBuffer() throws IOException {
+        if (count > 0) {
+            out.write(buffer, 0, count);
+            count = 0;
+        }
+    }
+}
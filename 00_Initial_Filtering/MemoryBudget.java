@@ -0,0 +1,77 @@
+// -*- coding: utf-8 -*-
+// package ebbertLab.expressionMatrixProcessor;
+
+/*
+ * The run's memory budget (--memory-budget), shared by the sample tasks
+ * running at the same time and the filtered matrices kept in memory for
+ * Phase 3.
+ *
+ * A task acquire()s its share before it starts: an equal part of what the
+ * kept matrices leave over, never more than the running tasks leave over.
+ * When it ends it release()s the share, and may keep part of it for a
+ * filtered matrix; releaseKept() frees that once Phase 3 is done with it.
+ * Shares and kept matrices together never exceed the budget, however the
+ * tasks interleave.
+ *
+ * The share is what the task may hold at its peak: the row store or the
+ * transposer get what is left after the stream buffers (streamBufferBytes()),
+ * and the parse pipeline's batches where a pipeline runs.
+ */
+public class MemoryBudget {
+
+    private final long totalBytes;
+    private final int tasks;        // Sample tasks running at the same time
+    private long keptBytes;         // Filtered matrices kept for Phase 3
+    private long sharedBytes;       // Shares held by running tasks
+
+    public MemoryBudget(long totalBytes, int tasks) {
+        this.totalBytes = totalBytes;
+        this.tasks = Math.max(1, tasks);
+    }
+
+    /*
+     * Share for one task of budgetBytes, of which keptBytes are held by kept
+     * matrices (used to plan before any task runs).
+     */
+    static long share(long budgetBytes, long keptBytes, int tasks) {
+        return Math.max(0, (budgetBytes - keptBytes) / Math.max(1, tasks));
+    }
+
+    /*
+     * Take a share of the budget for a task that is starting.
+     */
+    public synchronized long acquire() {
+        long share = Math.max(0, Math.min(share(totalBytes, keptBytes, tasks), totalBytes - keptBytes - sharedBytes));
+        sharedBytes += share;
+        return share;
+    }
+
+    /*
+     * Return a task's share, keeping keepBytes of it (at most the share) for
+     * a filtered matrix.
+     */
+    public synchronized void release(long share, long keepBytes) {
+        sharedBytes -= share;
+        keptBytes += keepBytes;
+    }
+
+    /*
+     * Free a kept matrix's bytes.
+     */
+    public synchronized void releaseKept(long bytes) {
+        keptBytes -= bytes;
+    }
+
+    public synchronized long keptBytes() {
+        return keptBytes;
+    }
+
+    /*
+     * Heap held by the buffered streams of a task besides the matrix data:
+     * the input parser's buffer, the output writer's buffer, and the blocks
+     * queued by a background gzip reader and writer.
+     */
+    static long streamBufferBytes() {
+        return TabDelimitedParser.DEFAULT_BUFFER_SIZE + MatrixTextWriter.DEFAULT_BUFFER_SIZE + 2 * CompressedStreams.bufferedBytes();
+    }
+}
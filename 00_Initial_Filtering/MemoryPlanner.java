@@ -0,0 +1,334 @@
+// -*- coding: utf-8 -*-
+// package ebbertLab.expressionMatrixProcessor;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.GZIPInputStream;
+
+/*
+ * Chooses, before any work begins, how each sample is processed within the
+ * memory budget (--memory-budget), and logs the plan with its estimated cost.
+ *
+ * Each matrix is sized from its header and its first few MB of rows
+ * (decompressed, for gzip input): the cells come from the header, the rows
+ * are extrapolated from the bytes per row and the file size, and the share
+ * of nonzero values from the sampled rows. With these, the planner picks the
+ * fastest strategy that fits the sample's share of the budget (see
+ * MemoryBudget), which is what the matrices kept for Phase 3 by earlier
+ * samples leave, divided among the concurrent samples:
+ *
+ *     in-memory sparse   One pass over the raw matrix. The nonzeros are kept
+ *                        in a SparseRowStore until the cell threshold is
+ *                        known, and the filtered matrix stays in memory for
+ *                        Phase 3 if the share has room for it and its
+ *                        transposed copy.
+ *     tiled transpose    Two streaming passes over the raw matrix; Phase 3
+ *                        re-reads the filtered matrix into a single
+ *                        in-memory tile of the BlockedTransposer.
+ *     external           Two streaming passes; Phase 3 spills transposed
+ *                        tiles to a scratch file and merges them. Also used
+ *                        for forced single-pass runs whose row store will
+ *                        spill.
+ *
+ * The estimated peak of a sample counts everything its task holds at once:
+ * in memory, the row store's arrays while they double, the filtered matrix
+ * built next to the store, and in Phase 3 the matrix with its transposed
+ * copy; when streaming, the pipeline's batches and the transposer. Both add
+ * the parser, writer and gzip buffers.
+ *
+ * Only Phase 1's choice of one or two passes is taken from the plan. The row
+ * store and the transposer still check the budget themselves as rows arrive,
+ * so a wrong estimate costs speed, never correctness. Estimates are upper
+ * bounds: they assume every cell and gene passes the filters.
+ */
+public class MemoryPlanner {
+
+    private static final int SAMPLE_BYTES = 4 << 20;    // Decompressed bytes of rows read to size a matrix
+
+    enum Strategy {
+        IN_MEMORY("in-memory sparse"),
+        TILED("tiled transpose"),
+        STREAMING("streaming"),                         // Matrix Market output only: no transpose
+        EXTERNAL("external (disk-spilled)");
+
+        final String label;
+
+        Strategy(String label) {
+            this.label = label;
+        }
+    }
+
+    /*
+     * Size of one matrix, measured from a sample of its rows.
+     */
+    static class MatrixSize {
+        int cells;
+        long rows;
+        long nonzeros;
+        long textBytes;         // Uncompressed size of the matrix
+        boolean exact;          // The whole matrix was read
+        boolean compressed;     // gzip input, which is never parsed in chunks
+    }
+
+    /*
+     * How one sample will be processed and what that is expected to cost.
+     */
+    static class SamplePlan {
+        String sampleName;
+        MatrixSize size;        // null if the matrix could not be sized
+        Strategy strategy;
+        boolean singlePass;
+        boolean keptInMemory;   // Filtered matrix expected to stay in memory for Phase 3
+        long keptBytes;         // Budget reserved for the kept matrix until Phase 3 is done
+        long shareBytes;        // Largest share of the budget the sample is expected to get
+        long peakBytes;
+        long scratchBytes;      // Written to spill and scratch files (and read back)
+        long parsedBytes;       // Matrix text parsed across all passes
+    }
+
+    private MemoryPlanner() {
+    }
+
+    /*
+     * Plan every input file, in order, and print the plan.
+     */
+    static Map<File, SamplePlan> plan(File[] inputFiles, ExpressionMatrixProcessor.Options options, ProcessingMetrics metrics) {
+        long budget = options.memoryBudgetBytes;
+        int labelColumns = options.expressionColumnIndex();
+        boolean transposed = options.outputFormats.contains("tsv") || options.outputFormats.contains("binary");
+        long streamBytes = MemoryBudget.streamBufferBytes();
+        long pipelineBytes = RowPipeline.bufferedBytes(options.fileThreads);
+        long kept = 0;          // Budget reserved by filtered matrices kept for Phase 3, as by MemoryBudget
+
+        System.out.println("\n🧮 Memory plan (" + mb(budget) + " budget of a " + mb(Runtime.getRuntime().maxMemory()) + " heap, "
+                + options.threads + (options.threads == 1 ? " sample" : " samples") + " at a time, strategy " + options.strategy + "):");
+        Map<File, SamplePlan> plans = new LinkedHashMap<>();
+        for (File inputFile : inputFiles) {
+            SamplePlan plan = new SamplePlan();
+            plan.sampleName = ExpressionMatrixProcessor.sampleName(inputFile);
+            try {
+                plan.size = measure(inputFile, labelColumns);
+            } catch (IOException | RuntimeException e) {
+                // Phase 1 reports unreadable matrices; planning must not fail the run
+                System.out.println("  ⚠️ " + plan.sampleName + ": could not size the matrix (" + e.getMessage() + ")");
+            }
+            MatrixSize size = plan.size;
+            plan.shareBytes = MemoryBudget.share(budget, kept, options.threads);
+
+            /*
+             * In memory, Phase 1 holds the row store as it grows (next to the
+             * chunks being parsed), then the store and the filtered matrix.
+             */
+            long storeBytes = 0;
+            long inMemoryPeak = 0;
+            long keepBytes = 0;
+            long textBytes = 0;
+            if (size != null) {
+                long chunkBytes = options.fileThreads > 1 && !size.compressed ? ChunkedMatrixParser.bufferedBytes(options.fileThreads) : 0;
+                long sparseBytes = SparseMatrix.estimatedBytes(size.rows, size.nonzeros);
+                storeBytes = SparseRowStore.estimatedMemoryBytes(size.rows, size.nonzeros, labelColumns);
+                inMemoryPeak = Math.max(SparseRowStore.estimatedPeakBytes(size.rows, size.nonzeros, size.cells, labelColumns) + chunkBytes,
+                        SparseRowStore.estimatedAllocatedBytes(size.rows, size.nonzeros, size.cells, labelColumns) + sparseBytes) + streamBytes;
+                keepBytes = 2 * sparseBytes + streamBytes;          // As in filterSample()
+                textBytes = size.textBytes;
+            }
+            boolean storeFits = size != null && inMemoryPeak <= plan.shareBytes;
+
+            if (options.strategy.equals("single-pass")) {
+                plan.singlePass = true;
+            } else if (options.strategy.equals("two-pass")) {
+                plan.singlePass = false;
+            } else {
+                plan.singlePass = storeFits;
+            }
+
+            long parsed = plan.singlePass ? textBytes : 2 * textBytes;
+            long scratch = 0;
+            long peak;
+            if (plan.singlePass && storeFits) {
+                plan.keptInMemory = keepBytes <= plan.shareBytes;
+                if (plan.keptInMemory) {
+                    plan.keptBytes = keepBytes;
+                    kept += keepBytes;
+                }
+                peak = Math.max(inMemoryPeak, plan.keptBytes);      // Phase 3 holds the kept matrix and its transposed copy
+                plan.strategy = Strategy.IN_MEMORY;
+            } else if (plan.singlePass) {
+                scratch += storeBytes;          // Spilled rows, roughly the size of the store
+                peak = plan.shareBytes;
+                plan.strategy = Strategy.EXTERNAL;
+            } else {
+                peak = pipelineBytes + streamBytes;
+                plan.strategy = transposed ? Strategy.TILED : Strategy.STREAMING;
+            }
+            if (!plan.keptInMemory) {
+                parsed += textBytes;            // Phase 3 re-reads the filtered matrix
+            }
+            plan.peakBytes = peak;
+            plan.scratchBytes = scratch;
+            plan.parsedBytes = parsed;
+            plans.put(inputFile, plan);
+        }
+
+        /*
+         * Phase 3 of a sample that re-reads its filtered matrix gets a share
+         * of what the matrices still kept for it and later samples leave.
+         */
+        long keptLater = kept;
+        for (SamplePlan plan : plans.values()) {
+            MatrixSize size = plan.size;
+            long share = MemoryBudget.share(budget, keptLater, options.threads);
+            keptLater -= plan.keptBytes;
+            if (plan.keptInMemory || size == null) {
+                continue;
+            }
+            long peak = pipelineBytes + streamBytes;
+            if (transposed) {
+                long transposerBytes = Math.max(0, share - streamBytes - pipelineBytes);   // As in transposeSample()
+                peak += BlockedTransposer.estimatedPeakBytes(size.rows, size.cells, transposerBytes);
+                if (size.rows > BlockedTransposer.tileRows(size.cells, transposerBytes)) {
+                    plan.scratchBytes += (long) Integer.BYTES * size.rows * size.cells;
+                    if (plan.strategy == Strategy.TILED) {
+                        plan.strategy = Strategy.EXTERNAL;
+                    }
+                }
+            }
+            plan.peakBytes = Math.max(plan.peakBytes, peak);
+            plan.shareBytes = Math.max(plan.shareBytes, share);
+        }
+
+        for (SamplePlan plan : plans.values()) {
+            log(plan);
+            MatrixSize size = plan.size;
+            if (size != null) {
+                metrics.event("plan", "sample", plan.sampleName, "strategy", plan.strategy.name().toLowerCase(Locale.ROOT),
+                        "single_pass", plan.singlePass, "kept_in_memory", plan.keptInMemory, "rows", size.rows, "cells", size.cells,
+                        "nonzeros", size.nonzeros, "text_bytes", size.textBytes, "exact", size.exact, "peak_bytes", plan.peakBytes,
+                        "share_bytes", plan.shareBytes, "scratch_bytes", plan.scratchBytes, "parsed_bytes", plan.parsedBytes);
+            }
+        }
+        return plans;
+    }
+
+    private static void log(SamplePlan plan) {
+        MatrixSize size = plan.size;
+        String passes = plan.singlePass ? "one pass" : "two passes";
+        if (size == null) {
+            System.out.println("  " + plan.sampleName + " → " + passes + " (not sized)");
+            return;
+        }
+        double density = size.rows * (double) size.cells > 0 ? 100.0 * size.nonzeros / (size.rows * (double) size.cells) : 0.0;
+        String approx = size.exact ? "" : "~";
+        System.out.printf("  %s: %s%d genes × %d cells, %.1f%% nonzero, %s%s → %s (%s%s)\n", plan.sampleName, approx, size.rows, size.cells,
+                density, approx, mb(size.textBytes), plan.strategy.label, passes, plan.keptInMemory ? ", Phase 3 from memory" : "");
+        System.out.println("      est. peak " + mb(plan.peakBytes) + " of a " + mb(plan.shareBytes) + " share, parse " + mb(plan.parsedBytes) + ", scratch " + mb(plan.scratchBytes));
+    }
+
+    /*
+     * Size a matrix from its header and the first SAMPLE_BYTES of rows
+     * after it.
+     */
+    static MatrixSize measure(File file, int labelColumns) throws IOException {
+        CountingInputStream raw = new CountingInputStream(new FileInputStream(file));
+        boolean gzip = CompressedStreams.isCompressed(file);
+        byte[] sample = new byte[SAMPLE_BYTES];
+        int length = 0;
+        int headerEnd = -1;     // Just past the header's newline, once found
+        boolean complete = false;
+        try (InputStream in = gzip ? new GZIPInputStream(raw, 1 << 16) : raw) {
+            while (headerEnd < 0 || length < headerEnd + SAMPLE_BYTES) {
+                if (length == sample.length) {
+                    sample = Arrays.copyOf(sample, sample.length * 2);   // Header longer than the sample
+                }
+                int limit = headerEnd < 0 ? sample.length : Math.min(sample.length, headerEnd + SAMPLE_BYTES);
+                int read = in.read(sample, length, limit - length);
+                if (read < 0) {
+                    complete = true;
+                    break;
+                }
+                for (int i = length; headerEnd < 0 && i < length + read; i++) {
+                    if (sample[i] == '\n') {
+                        headerEnd = i + 1;
+                    }
+                }
+                length += read;
+            }
+            complete = complete || in.read() < 0;
+        }
+        if (!complete) {
+            // Only whole lines
+            while (length > headerEnd && sample[length - 1] != '\n') {
+                length--;
+            }
+        }
+
+        MatrixSize size = new MatrixSize();
+        size.compressed = gzip;
+        long headerBytes;
+        long sampledRows = 0;
+        long sampledNonzeros = 0;
+        try (TabDelimitedParser parser = new TabDelimitedParser(new ByteArrayInputStream(sample, 0, length), labelColumns)) {
+            size.cells = Math.max(parser.readHeader().length - labelColumns, 0);
+            headerBytes = parser.offset();
+            while (parser.next()) {
+                double[] values = parser.values();
+                int count = Math.min(parser.valueCount(), size.cells);
+                for (int i = 0; i < count; i++) {
+                    if (values[i] != 0.0) {
+                        sampledNonzeros++;
+                    }
+                }
+                sampledRows++;
+            }
+        }
+
+        /*
+         * Extrapolate from the sampled rows to the whole file; gzip input is
+         * assumed to compress the rest of the file as well as the sample.
+         */
+        size.exact = complete;
+        size.textBytes = complete ? length : Math.round((double) length * file.length() / Math.max(raw.count, 1));
+        if (complete || sampledRows == 0) {
+            size.rows = sampledRows;
+            size.nonzeros = sampledNonzeros;
+        } else {
+            double bytesPerRow = (double) (length - headerBytes) / sampledRows;
+            size.rows = Math.round((size.textBytes - headerBytes) / bytesPerRow);
+            size.nonzeros = Math.round((double) sampledNonzeros * size.rows / sampledRows);
+        }
+        return size;
+    }
+
+    private static String mb(long bytes) {
+        return String.format(Locale.ROOT, "%.1f MB", bytes / (1024.0 * 1024.0));
+    }
+
+    /*
+     * Counts the (compressed) bytes read from the file.
+     */
+    private static class CountingInputStream extends FilterInputStream {
+        long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = super.read(buffer, offset, length);
+            if (read > 0) {
+                count += read;
+            }
+            return read;
+        }
+    }
+}
@@ -0,0 +1,375 @@
+// -*- coding: utf-8 -*-
+// package ebbertLab.expressionMatrixProcessor;
+
+import java.io.*;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Machine-readable progress metrics, written as JSON lines (--metrics-file).
+ *
+ * Work is split into phases per sample (column_sums, filter, transpose_read,
+ * transpose_write, plus the global gene_filter). Each phase has counters for
+ * rows, bytes read and time spent reading, parsing and writing. The hot
+ * paths update them once per batch (or every 1024 rows), so counting costs
+ * next to nothing. Bytes written are not counted at all: a phase watches its
+ * output files and their sizes on disk are read when a record is written.
+ *
+ * A daemon thread writes a "progress" record for every running phase each
+ * interval, and a "phase_end" record is written when a phase finishes. Every
+ * record also carries process-wide gauges: heap and non-heap use, direct and
+ * mapped buffers (off-heap), GC time, and the size of the scratch files
+ * (*.spill, *.tmp) in the working directory.
+ *
+ * Without a metrics file, phases still count but nothing is written and no
+ * thread is started.
+ */
+public class ProcessingMetrics implements Closeable {
+
+    private static final List<String> SCRATCH_SUFFIXES = Arrays.asList(".spill", ".tmp");
+
+    private final Writer out;               // null if disabled
+    private final File scratchDir;
+    private final long startNanos = System.nanoTime();
+    private final Set<Phase> running = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService ticker;
+    private long peakHeapBytes;
+    private long peakTempBytes;
+
+    private ProcessingMetrics(Writer out, long intervalMillis, File scratchDir) {
+        this.out = out;
+        this.scratchDir = scratchDir;
+        if (out == null) {
+            this.ticker = null;
+            return;
+        }
+        this.ticker = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        ticker.scheduleAtFixedRate(this::tick, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /*
+     * Metrics written to file every intervalMillis; scratch files are looked
+     * for in scratchDir.
+     */
+    public static ProcessingMetrics open(File file, long intervalMillis, File scratchDir) throws IOException {
+        Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8));
+        return new ProcessingMetrics(out, Math.max(intervalMillis, 1), scratchDir);
+    }
+
+    /*
+     * Metrics that count but write nothing.
+     */
+    public static ProcessingMetrics disabled() {
+        return new ProcessingMetrics(null, 0, null);
+    }
+
+    public boolean isEnabled() {
+        return out != null;
+    }
+
+    /*
+     * Start a phase. sample may be null for phases that cover all samples.
+     */
+    public Phase startPhase(String sample, String name) {
+        Phase phase = new Phase(sample, name);
+        if (out != null) {
+            running.add(phase);
+        }
+        return phase;
+    }
+
+    /*
+     * Write a one-off record, e.g. the run settings. fields alternate names
+     * and values (String, Number or Boolean).
+     */
+    public void event(String event, Object... fields) {
+        if (out == null) {
+            return;
+        }
+        Record record = record(event);
+        for (int i = 0; i + 1 < fields.length; i += 2) {
+            record.field((String) fields[i], fields[i + 1]);
+        }
+        write(record);
+    }
+
+    /*
+     * Write the "run_end" record and stop the ticker.
+     */
+    @Override
+    public void close() throws IOException {
+        if (out == null) {
+            return;
+        }
+        ticker.shutdownNow();
+        Record record = record("run_end");
+        addGauges(record);
+        record.field("peak_heap_used_bytes", peakHeapBytes).field("peak_temp_bytes", peakTempBytes);
+        write(record);
+        synchronized (this) {
+            out.close();
+        }
+    }
+
+    /*
+     * Ticker: one progress record per running phase, or a gauges-only record
+     * between phases.
+     */
+    private void tick() {
+        List<Phase> phases = new ArrayList<>(running);
+        if (phases.isEmpty()) {
+            Record record = record("progress");
+            addGauges(record);
+            write(record);
+            return;
+        }
+        for (Phase phase : phases) {
+            Record record = record("progress");
+            phase.addCounters(record, true);
+            addGauges(record);
+            write(record);
+        }
+    }
+
+    private Record record(String event) {
+        return new Record()
+                .field("event", event)
+                .field("time", Instant.now().toString())
+                .field("elapsed_s", seconds(System.nanoTime() - startNanos));
+    }
+
+    /*
+     * Process-wide memory, GC and temp-space gauges.
+     */
+    private void addGauges(Record record) {
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        MemoryUsage nonHeap = ManagementFactory.getMemoryMXBean().getNonHeapMemoryUsage();
+        long direct = 0;
+        long mapped = 0;
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            if (pool.getName().equals("direct")) {
+                direct = pool.getMemoryUsed();
+            } else if (pool.getName().equals("mapped")) {
+                mapped = pool.getMemoryUsed();
+            }
+        }
+        long gcMillis = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            gcMillis += Math.max(0, collector.getCollectionTime());
+        }
+        long temp = tempBytes();
+        synchronized (this) {
+            peakHeapBytes = Math.max(peakHeapBytes, heap.getUsed());
+            peakTempBytes = Math.max(peakTempBytes, temp);
+        }
+        record.field("heap_used_bytes", heap.getUsed())
+                .field("heap_committed_bytes", heap.getCommitted())
+                .field("heap_max_bytes", heap.getMax())
+                .field("non_heap_used_bytes", nonHeap.getUsed())
+                .field("direct_bytes", direct)
+                .field("mapped_bytes", mapped)
+                .field("gc_s", gcMillis / 1000.0)
+                .field("temp_bytes", temp);
+    }
+
+    private long tempBytes() {
+        File[] files = scratchDir.listFiles((dir, name) -> SCRATCH_SUFFIXES.stream().anyMatch(name::endsWith));
+        long bytes = 0;
+        if (files != null) {
+            for (File file : files) {
+                bytes += file.length();
+            }
+        }
+        return bytes;
+    }
+
+    private synchronized void write(Record record) {
+        try {
+            out.write(record.toString());
+            out.write('\n');
+            out.flush(); // So the file can be followed while the job runs
+        } catch (IOException e) {
+            // Metrics must never fail the run
+        }
+    }
+
+    private static double seconds(long nanos) {
+        return nanos / 1_000_000_000.0;
+    }
+
+    /*
+     * Counters of one phase of one sample. Safe to update from any thread.
+     */
+    public class Phase {
+        final String sample;
+        final String name;
+        final long startNanos = System.nanoTime();
+        final AtomicLong rows = new AtomicLong();
+        final AtomicLong bytesRead = new AtomicLong();
+        final AtomicLong readNanos = new AtomicLong();
+        final AtomicLong parseNanos = new AtomicLong();
+        final AtomicLong writeNanos = new AtomicLong();
+        private final List<File> outputs = new CopyOnWriteArrayList<>();
+
+        // Values at the previous progress record, for rates (ticker thread only)
+        private long lastNanos = startNanos;
+        private long lastRows;
+        private long lastBytesRead;
+
+        Phase(String sample, String name) {
+            this.sample = sample;
+            this.name = name;
+        }
+
+        public void addRows(long count) {
+            rows.addAndGet(count);
+        }
+
+        public void addBytesRead(long bytes) {
+            bytesRead.addAndGet(bytes);
+        }
+
+        public void addReadNanos(long nanos) {
+            readNanos.addAndGet(nanos);
+        }
+
+        public void addParseNanos(long nanos) {
+            parseNanos.addAndGet(nanos);
+        }
+
+        public void addWriteNanos(long nanos) {
+            writeNanos.addAndGet(nanos);
+        }
+
+        /*
+         * Set the running totals, for single-threaded loops that keep their
+         * own counts.
+         */
+        public void setProgress(long rowCount, long bytes) {
+            rows.lazySet(rowCount);
+            bytesRead.lazySet(bytes);
+        }
+
+        /*
+         * Count the size of file (or of the files in a directory) as bytes
+         * written by this phase.
+         */
+        public void watchOutput(File file) {
+            outputs.add(file);
+        }
+
+        /*
+         * Finish the phase and write its "phase_end" record.
+         */
+        public void end() {
+            if (!running.remove(this)) {
+                return;
+            }
+            Record record = record("phase_end");
+            addCounters(record, false);
+            addGauges(record);
+            write(record);
+        }
+
+        private long bytesWritten() {
+            long bytes = 0;
+            for (File output : outputs) {
+                File[] files = output.isDirectory() ? output.listFiles() : new File[] {output};
+                if (files != null) {
+                    for (File file : files) {
+                        bytes += file.length();
+                    }
+                }
+            }
+            return bytes;
+        }
+
+        /*
+         * Totals, and rates either since the previous progress record
+         * (progress) or over the whole phase.
+         */
+        private void addCounters(Record record, boolean progress) {
+            long now = System.nanoTime();
+            long rowCount = rows.get();
+            long bytes = bytesRead.get();
+            double elapsed = seconds(now - (progress ? lastNanos : startNanos));
+            long rowDelta = progress ? rowCount - lastRows : rowCount;
+            long byteDelta = progress ? bytes - lastBytesRead : bytes;
+            if (progress) {
+                lastNanos = now;
+                lastRows = rowCount;
+                lastBytesRead = bytes;
+            }
+            if (sample != null) {
+                record.field("sample", sample);
+            }
+            record.field("phase", name)
+                    .field("phase_elapsed_s", seconds(now - startNanos))
+                    .field("rows", rowCount)
+                    .field("rows_per_s", elapsed > 0 ? rowDelta / elapsed : 0.0)
+                    .field("bytes_read", bytes)
+                    .field("read_mb_per_s", elapsed > 0 ? byteDelta / (1024.0 * 1024.0) / elapsed : 0.0)
+                    .field("bytes_written", bytesWritten())
+                    .field("read_s", seconds(readNanos.get()))
+                    .field("parse_s", seconds(parseNanos.get()))
+                    .field("write_s", seconds(writeNanos.get()));
+        }
+    }
+
+    /*
+     * One JSON object, built field by field.
+     */
+    static class Record {
+        private final StringBuilder json = new StringBuilder("{");
+
+        Record field(String name, Object value) {
+            if (json.length() > 1) {
+                json.append(',');
+            }
+            appendString(name);
+            json.append(':');
+            if (value instanceof Double || value instanceof Float) {
+                double number = ((Number) value).doubleValue();
+                json.append(Double.isFinite(number) ? String.format(Locale.ROOT, "%.3f", number) : "null");
+            } else if (value instanceof Number || value instanceof Boolean) {
+                json.append(value);
+            } else if (value == null) {
+                json.append("null");
+            } else {
+                appendString(value.toString());
+            }
+            return this;
+        }
+
+        private void appendString(String text) {
+            json.append('"');
+            for (int i = 0; i < text.length(); i++) {
+                char c = text.charAt(i);
+                if (c == '"' || c == '\\') {
+                    json.append('\\').append(c);
+                } else if (c < 0x20) {
+                    json.append(String.format("\\u%04x", (int) c));
+                } else {
+                    json.append(c);
+                }
+            }
+            json.append('"');
+        }
+
+        @Override
+        public String toString() {
+            return json + "}";
+        }
+    }
+}
@@ -0,0 +1,440 @@
+// -*- coding: utf-8 -*-
+// package ebbertLab.expressionMatrixProcessor;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Reads the data rows of one matrix file through three concurrent stages:
+ *
+ *     reader   one thread cutting the file into newline-aligned batches of
+ *              raw bytes (about BATCH_BYTES each), read from a stream, which
+ *              may be inflating gzip on its own thread, or sliced straight
+ *              out of memory-mapped windows
+ *     parsers  a pool of workers, each turning a batch into a result with
+ *              its own TabDelimitedParser (e.g. formatted output rows or
+ *              values in hundredths)
+ *     writer   the calling thread, which receives the results in file order
+ *
+ * The reader hands each batch to the pool and queues its Future in a bounded
+ * queue; the writer takes Futures from the queue in order. When the writer
+ * falls behind the queue fills up and the reader blocks, so at most
+ * queueCapacity + 2 batches are held in memory however large the file is.
+ * A failure in any stage ends the run and is rethrown by run().
+ *
+ * run() returns Stats with the time each stage spent working and waiting
+ * and the queue depths it saw, which shows which stage bounds throughput.
+ */
+public class RowPipeline<T> implements Closeable {
+
+    static final int BATCH_BYTES = 1 << 20;
+
+    /*
+     * Heap held by a pipeline with workers parser threads: up to
+     * queueCapacity + 2 batches, each with its raw bytes and its result,
+     * which is taken to be at most twice the raw size (values in hundredths
+     * are 4 bytes for at least 2 bytes of text).
+     */
+    static long bufferedBytes(int workers) {
+        return (2L * Math.max(1, workers) + 4) * 3 * BATCH_BYTES;
+    }
+
+    /*
+     * Turns one batch of rows into a result. Runs on a worker thread, so it
+     * may only share read-only state (or thread-safe state such as GeneIndex).
+     */
+    public interface BatchParser<T> {
+        T parse(TabDelimitedParser rows) throws IOException;
+    }
+
+    /*
+     * Consumes the parsed batches in file order, on the thread calling run().
+     */
+    public interface BatchWriter<T> {
+        void write(T batch) throws IOException;
+    }
+
+    private final File file;
+    private final int labelColumns;
+    private final int workers;
+    private final int queueCapacity;
+    private final int batchBytes;
+
+    // Stream source (null when mapped)
+    private final InputStream in;
+    private byte[] pending = new byte[0];   // Partial line carried over to the next batch
+    private boolean endOfStream;
+
+    // Mapped source (null when reading a stream)
+    private final FileChannel channel;
+    private ByteBuffer window;
+    private long windowStart;
+    private long position;      // Offset of the next unread byte
+
+    private ByteBuffer firstBatch;  // Data left over from the header's batch
+    private long nextLine = 1;      // 1-based line number of the next unread line
+
+    public RowPipeline(File file, int labelColumns, int workers, boolean mapped) throws IOException {
+        this(file, labelColumns, workers, mapped, BATCH_BYTES);
+    }
+
+    /*
+     * Pipeline over file with workers parser threads. Plain files are sliced
+     * from memory-mapped windows if mapped is set; gzip files are always
+     * streamed.
+     */
+    public RowPipeline(File file, int labelColumns, int workers, boolean mapped, int batchBytes) throws IOException {
+        this.file = file;
+        this.labelColumns = labelColumns;
+        this.workers = Math.max(1, workers);
+        this.queueCapacity = 2 * this.workers + 2;
+        this.batchBytes = Math.max(batchBytes, 1024);
+        if (mapped && !CompressedStreams.isCompressed(file)) {
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            this.in = null;
+        } else {
+            this.channel = null;
+            this.in = CompressedStreams.openInput(file);
+        }
+    }
+
+    /*
+     * Read the header line, like TabDelimitedParser.readHeader(). Must be
+     * called before run(); returns null if the file is empty.
+     */
+    public String[] readHeader() throws IOException {
+        ByteBuffer batch = nextBatch();
+        if (batch == null) {
+            return null;
+        }
+        int end = 0;
+        while (end < batch.limit() && batch.get(end) != '\n') {
+            end++;
+        }
+        end = Math.min(end + 1, batch.limit());
+        nextLine++;
+
+        ByteBuffer header = batch.duplicate();
+        header.limit(end);
+        if (end < batch.limit()) {
+            batch.position(end);
+            firstBatch = batch.slice();
+        }
+        return new TabDelimitedParser(header.slice(), labelColumns, 1).readHeader();
+    }
+
+    /*
+     * Parse every remaining row with parser on the worker pool and pass the
+     * results to writer in file order.
+     */
+    public Stats run(BatchParser<T> parser, BatchWriter<T> writer) throws IOException {
+        return run(parser, writer, null);
+    }
+
+    /*
+     * As run(parser, writer), also adding each batch's rows, bytes and stage
+     * times to phase (if not null) as it goes.
+     */
+    public Stats run(BatchParser<T> parser, BatchWriter<T> writer, ProcessingMetrics.Phase phase) throws IOException {
+        Stats stats = new Stats(workers, queueCapacity);
+        long start = System.nanoTime();
+        ExecutorService pool = Executors.newFixedThreadPool(workers);
+        BlockingQueue<Future<T>> queue = new ArrayBlockingQueue<>(queueCapacity);
+        CompletableFuture<T> end = CompletableFuture.completedFuture(null);
+
+        Thread reader = new Thread(() -> produce(parser, pool, queue, end, stats, phase), "reader-" + file.getName());
+        reader.setDaemon(true);
+        reader.start();
+        try {
+            while (true) {
+                long waitStart = System.nanoTime();
+                Future<T> future = take(queue);
+                T batch = await(future);
+                long writeStart = System.nanoTime();
+                stats.writerWaitNanos += writeStart - waitStart;
+                if (future == end) {
+                    break;
+                }
+                writer.write(batch);
+                long writeNanos = System.nanoTime() - writeStart;
+                stats.writeNanos += writeNanos;
+                if (phase != null) {
+                    phase.addWriteNanos(writeNanos);
+                }
+            }
+        } finally {
+            reader.interrupt();
+            pool.shutdownNow();
+            try {
+                reader.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        stats.elapsedNanos = System.nanoTime() - start;
+        return stats;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (in != null) {
+            in.close();
+        }
+        if (channel != null) {
+            channel.close();
+        }
+    }
+
+    /*
+     * Reader stage: cut batches, submit them to the pool and queue their
+     * Futures in order, blocking while the queue is full. Ends with end, or
+     * with a failed Future if reading fails.
+     */
+    private void produce(BatchParser<T> parser, ExecutorService pool, BlockingQueue<Future<T>> queue, Future<T> end, Stats stats,
+                         ProcessingMetrics.Phase phase) {
+        try {
+            try {
+                while (true) {
+                    long readStart = System.nanoTime();
+                    ByteBuffer batch = firstBatch != null ? firstBatch : nextBatch();
+                    firstBatch = null;
+                    if (batch == null) {
+                        break;
+                    }
+                    long firstLine = nextLine;
+                    long lines = countLines(batch);
+                    nextLine += lines;
+                    stats.batches++;
+                    stats.bytes += batch.limit();
+                    stats.rows += lines;
+                    long readNanos = System.nanoTime() - readStart;
+                    stats.readNanos += readNanos;
+                    if (phase != null) {
+                        phase.addRows(lines);
+                        phase.addBytesRead(batch.limit());
+                        phase.addReadNanos(readNanos);
+                    }
+
+                    Future<T> future = pool.submit(() -> parseBatch(parser, batch, firstLine, stats, phase));
+                    long putStart = System.nanoTime();
+                    queue.put(future);
+                    stats.readerBlockedNanos += System.nanoTime() - putStart;
+
+                    int depth = queue.size();
+                    stats.queueDepthTotal += depth;
+                    stats.maxQueueDepth = Math.max(stats.maxQueueDepth, depth);
+                }
+                queue.put(end);
+            } catch (IOException | RuntimeException e) {
+                CompletableFuture<T> failed = new CompletableFuture<>();
+                failed.completeExceptionally(e);
+                queue.put(failed);
+            }
+        } catch (InterruptedException e) {
+            // The writer stopped early (it failed or consumed a failure)
+        }
+    }
+
+    private T parseBatch(BatchParser<T> parser, ByteBuffer batch, long firstLine, Stats stats, ProcessingMetrics.Phase phase) throws IOException {
+        long parseStart = System.nanoTime();
+        T result = parser.parse(new TabDelimitedParser(batch, labelColumns, firstLine));
+        long parseNanos = System.nanoTime() - parseStart;
+        stats.parseNanos.addAndGet(parseNanos);
+        if (phase != null) {
+            phase.addParseNanos(parseNanos);
+        }
+        return result;
+    }
+
+    /*
+     * Next batch of whole lines (the last one may lack its newline), or null
+     * at end of input.
+     */
+    private ByteBuffer nextBatch() throws IOException {
+        return channel != null ? nextMappedBatch() : nextStreamBatch();
+    }
+
+    /*
+     * Stream source: read up to batchBytes after the carried-over partial
+     * line and cut after the last newline. The buffer is doubled if it does
+     * not hold a single whole line.
+     */
+    private ByteBuffer nextStreamBatch() throws IOException {
+        byte[] bytes = new byte[Math.max(batchBytes, 2 * pending.length)];
+        int length = pending.length;
+        System.arraycopy(pending, 0, bytes, 0, length);
+        while (true) {
+            while (length < bytes.length && !endOfStream) {
+                int read = in.read(bytes, length, bytes.length - length);
+                if (read < 0) {
+                    endOfStream = true;
+                } else {
+                    length += read;
+                }
+            }
+            int cut = endOfStream ? length : lastNewline(bytes, length) + 1;
+            if (endOfStream && length == 0) {
+                pending = new byte[0];
+                return null;
+            }
+            if (cut > 0) {
+                pending = Arrays.copyOfRange(bytes, cut, length);
+                return ByteBuffer.wrap(bytes, 0, cut).slice();
+            }
+            bytes = Arrays.copyOf(bytes, bytes.length * 2);
+        }
+    }
+
+    /*
+     * Mapped source: slice about batchBytes out of the current window, cut
+     * after the last newline. A new window is mapped at the first unread byte
+     * when the batch would run past the current one, and doubled if it does
+     * not hold a single whole line.
+     */
+    private ByteBuffer nextMappedBatch() throws IOException {
+        long size = channel.size();
+        if (position >= size) {
+            return null;
+        }
+        long windowSize = TabDelimitedParser.MAPPED_WINDOW_SIZE;
+        if (window == null || position + batchBytes > windowStart + window.limit() && windowStart + window.limit() < size) {
+            map(Math.min(windowSize, size - position));
+        }
+        while (true) {
+            int from = (int) (position - windowStart);
+            int to = (int) Math.min(from + (long) batchBytes, window.limit());
+            int cut = windowStart + window.limit() == size && to == window.limit() ? to : -1;
+            for (int i = to - 1; cut < 0 && i >= from; i--) {
+                if (window.get(i) == '\n') {
+                    cut = i + 1;
+                }
+            }
+            for (int i = to; cut < 0 && i < window.limit(); i++) {
+                if (window.get(i) == '\n') {
+                    cut = i + 1;
+                }
+            }
+            if (cut < 0 && windowStart + window.limit() == size) {
+                cut = window.limit();
+            }
+            if (cut >= 0) {
+                ByteBuffer batch = window.duplicate();
+                batch.limit(cut).position(from);
+                position = windowStart + cut;
+                return batch.slice();
+            }
+            windowSize = Math.min(2L * (window.limit() - from), Integer.MAX_VALUE - 8);
+            map(Math.min(windowSize, size - position));
+        }
+    }
+
+    private void map(long length) throws IOException {
+        window = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+        windowStart = position;
+    }
+
+    private static int lastNewline(byte[] bytes, int length) {
+        for (int i = length - 1; i >= 0; i--) {
+            if (bytes[i] == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /*
+     * Lines in a batch, counting an unterminated last line.
+     */
+    private static long countLines(ByteBuffer batch) {
+        long lines = 0;
+        int limit = batch.limit();
+        for (int i = 0; i < limit; i++) {
+            if (batch.get(i) == '\n') {
+                lines++;
+            }
+        }
+        if (limit > 0 && batch.get(limit - 1) != '\n') {
+            lines++;
+        }
+        return lines;
+    }
+
+    private Future<T> take(BlockingQueue<Future<T>> queue) throws IOException {
+        try {
+            return queue.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading " + file.getName());
+        }
+    }
+
+    private T await(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while parsing " + file.getName());
+        }
+    }
+
+    /*
+     * Work and wait times of one run. Reader fields are only written by the
+     * reader thread and writer fields by the writer; run() returns after the
+     * reader has finished.
+     */
+    public static class Stats {
+        final int workers;
+        final int queueCapacity;
+        long batches;
+        long bytes;
+        long rows;
+        long readNanos;             // Reading and cutting batches
+        long readerBlockedNanos;    // Reader waiting for room in the queue (backpressure)
+        final AtomicLong parseNanos = new AtomicLong();    // Summed over all workers
+        long writeNanos;            // Writer handling results
+        long writerWaitNanos;       // Writer waiting for the next result
+        long queueDepthTotal;       // Queue depth after each batch was queued
+        int maxQueueDepth;
+        long elapsedNanos;
+
+        Stats(int workers, int queueCapacity) {
+            this.workers = workers;
+            this.queueCapacity = queueCapacity;
+        }
+
+        double megabytesPerSecond() {
+            return elapsedNanos == 0 ? 0.0 : bytes / (1024.0 * 1024.0) / (elapsedNanos / 1_000_000_000.0);
+        }
+
+        double meanQueueDepth() {
+            return batches == 0 ? 0.0 : (double) queueDepthTotal / batches;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Pipeline: %d batches (%.1f MB, %d rows) in %.2f s, %.1f MB/s | read %.2f s, blocked %.2f s"
+                    + " | parse %.2f s on %d workers | write %.2f s, waiting %.2f s | queue mean %.1f, max %d of %d",
+                    batches, bytes / (1024.0 * 1024.0), rows, seconds(elapsedNanos), megabytesPerSecond(),
+                    seconds(readNanos), seconds(readerBlockedNanos), seconds(parseNanos.get()), workers,
+                    seconds(writeNanos), seconds(writerWaitNanos), meanQueueDepth(), maxQueueDepth, queueCapacity);
+        }
+
+        private static double seconds(long nanos) {
+            return nanos / 1_000_000_000.0;
+        }
+    }
+}
@@ -0,0 +1,470 @@
+// -*- coding: utf-8 -*-
+// package ebbertLab.expressionMatrixProcessor;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/*
+ * Per-sample checkpoints, so a run that dies (e.g. in Phase 3) can be
+ * resumed with --resume instead of starting over. They are only written with
+ * --checkpoint, which --resume and --incremental imply.
+ *
+ * After Phase 1 of a sample, <sample>.phase1.ckpt records what Phases 2 and 3
+ * need from it (the cell column sums, the retained cells and the cells
+ * expressing each gene), keyed by a fingerprint of the input file and the
+ * settings Phase 1 depends on. With --resume, a sample whose checkpoint still
+ * matches, and whose filtered matrix is still the one the checkpoint was
+ * written with, skips Phase 1: it is restored before the memory plan is
+ * made and left out of it, and of its raw matrix only the fingerprint below
+ * is read. The gene filter (--gene-min-cells) is not part of the key, so
+ * rerunning with a different gene filter goes straight to Phases 2 and 3.
+ *
+ * After Phase 2, cohort.ckpt records the samples of the run and the global
+ * count and filter status of every gene. --incremental (resume for a cohort
+ * that has grown) compares the new run against it to report which samples
+ * were added or changed, which genes changed filter status and which
+ * samples' transposed outputs therefore need to be regenerated.
+ *
+ * After Phase 3, <sample>.phase3.ckpt records a digest of everything the
+ * sample's Phase 3 outputs depend on (the filtered matrix, the genes kept by
+ * Phase 2 and the output formats) and the sizes of those outputs. With
+ * --resume, a sample whose digest and outputs still match skips Phase 3.
+ *
+ * The input fingerprint is the file's size, its modification time and a
+ * CRC32 of its first and last FINGERPRINT_BYTES, which catches a replaced
+ * file without reading all of it. Checkpoints are written to a temporary
+ * file and renamed, so a crash never leaves a partial checkpoint.
+ *
+ *     <sample>.phase1.ckpt (big-endian, DataOutputStream)
+ *       int     PHASE1_MAGIC ("EMP1")
+ *       int     VERSION
+ *       UTF     input file name
+ *       long    input size, long input modification time, long input CRC32
+ *       double  cell threshold
+ *       boolean two-column header, boolean compressed outputs
+ *       UTF     filtered matrix name, long size, long modification time
+ *       long    removed-cells file size
+ *       int     cells, then that many double column sums
+ *       int     retained cells, then that many int column indices
+ *       int     genes, then for each: UTF gene key, int expressing cells
+ *
+ *     cohort.ckpt (written after every checkpointed Phase 2, for --incremental)
+ *       int     COHORT_MAGIC ("EMPC")
+ *       int     VERSION
+ *       int     gene-min-cells
+ *       int     samples, then that many UTF sample names
+ *       int     genes, then for each (in first-seen order): UTF gene key,
+ *               int expressing cells over all samples, boolean filtered
+ *
+ *     <sample>.phase3.ckpt
+ *       int     PHASE3_MAGIC ("EMP3")
+ *       int     VERSION
+ *       UTF     digest (hex SHA-256)
+ *       int     outputs, then for each: UTF name, long size (for a
+ *               directory, the total size of its files)
+ */
+public class SampleCheckpoint {
+
+    static final int PHASE1_MAGIC = 0x454D5031;    // "EMP1"
+    static final int PHASE3_MAGIC = 0x454D5033;    // "EMP3"
+    static final int COHORT_MAGIC = 0x454D5043;    // "EMPC"
+    static final int VERSION = 1;
+    static final int FINGERPRINT_BYTES = 1 << 20;
+
+    static File phase1File(String sampleName) {
+        return new File(sampleName + ".phase1.ckpt");
+    }
+
+    static File phase3File(String sampleName) {
+        return new File(sampleName + ".phase3.ckpt");
+    }
+
+    /*
+     * Delete the sample's checkpoints, before its outputs are rewritten.
+     */
+    static void invalidate(String sampleName) {
+        phase1File(sampleName).delete();
+        phase3File(sampleName).delete();
+    }
+
+    /*
+     * Record the Phase 1 result of a sample.
+     */
+    static void savePhase1(ExpressionMatrixProcessor.SampleResult result, ExpressionMatrixProcessor.Options options, GeneIndex geneIndex) throws IOException {
+        File inputFile = result.inputFile;
+        File removedCells = removedCellsFile(result.sampleName);
+        writeAtomically(phase1File(result.sampleName), out -> {
+            out.writeInt(PHASE1_MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(inputFile.getName());
+            out.writeLong(inputFile.length());
+            out.writeLong(inputFile.lastModified());
+            out.writeLong(sampleCrc(inputFile));
+            out.writeDouble(options.cellThreshold);
+            out.writeBoolean(options.twoColumnHeader);
+            out.writeBoolean(options.compressOutput);
+            out.writeUTF(result.filteredFile.getName());
+            out.writeLong(result.filteredFile.length());
+            out.writeLong(result.filteredFile.lastModified());
+            out.writeLong(removedCells.length());
+            out.writeInt(result.columnSums.length);
+            for (double sum : result.columnSums) {
+                out.writeDouble(sum);
+            }
+            out.writeInt(result.retainedCells.length);
+            for (int cell : result.retainedCells) {
+                out.writeInt(cell);
+            }
+            out.writeInt(result.geneOrder.length);
+            for (int g = 0; g < result.geneOrder.length; g++) {
+                out.writeUTF(geneIndex.name(result.geneOrder[g]));
+                out.writeInt(result.expressedInCells[g]);
+            }
+        });
+    }
+
+    /*
+     * The sample's Phase 1 result from its checkpoint, or null (after
+     * printing why) if there is none or it no longer matches the input file,
+     * the settings or the outputs on disk.
+     */
+    static ExpressionMatrixProcessor.SampleResult loadPhase1(File inputFile, ExpressionMatrixProcessor.Options options, GeneIndex geneIndex, String tag) throws IOException {
+        String sampleName = ExpressionMatrixProcessor.sampleName(inputFile);
+        File checkpoint = phase1File(sampleName);
+        if (!checkpoint.isFile()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(checkpoint)))) {
+            if (in.readInt() != PHASE1_MAGIC || in.readInt() != VERSION) {
+                return stale(tag, sampleName, "unknown checkpoint format");
+            }
+            if (!in.readUTF().equals(inputFile.getName()) || in.readLong() != inputFile.length()
+                    || in.readLong() != inputFile.lastModified() || in.readLong() != sampleCrc(inputFile)) {
+                return stale(tag, sampleName, "input file changed");
+            }
+            if (in.readDouble() != options.cellThreshold || in.readBoolean() != options.twoColumnHeader
+                    || in.readBoolean() != options.compressOutput) {
+                return stale(tag, sampleName, "cell threshold, header mode or output compression changed");
+            }
+            File filteredFile = new File(in.readUTF());
+            if (in.readLong() != filteredFile.length() || in.readLong() != filteredFile.lastModified()
+                    || in.readLong() != removedCellsFile(sampleName).length() || !filteredFile.isFile()) {
+                return stale(tag, sampleName, "filtered matrix or removed-cells list missing or changed");
+            }
+
+            ExpressionMatrixProcessor.SampleResult result = new ExpressionMatrixProcessor.SampleResult();
+            result.inputFile = inputFile;
+            result.sampleName = sampleName;
+            result.filteredFile = filteredFile;
+            result.fromCheckpoint = true;
+            result.columnSums = new double[in.readInt()];
+            for (int i = 0; i < result.columnSums.length; i++) {
+                result.columnSums[i] = in.readDouble();
+            }
+            result.retainedCells = new int[in.readInt()];
+            for (int i = 0; i < result.retainedCells.length; i++) {
+                result.retainedCells[i] = in.readInt();
+            }
+            int genes = in.readInt();
+            result.geneOrder = new int[genes];
+            result.expressedInCells = new int[genes];
+            for (int g = 0; g < genes; g++) {
+                result.geneOrder[g] = geneIndex.intern(in.readUTF());
+                result.expressedInCells[g] = in.readInt();
+            }
+            return result;
+        } catch (EOFException e) {
+            return stale(tag, sampleName, "checkpoint is truncated");
+        }
+    }
+
+    /*
+     * Digest of everything the sample's Phase 3 outputs depend on.
+     */
+    static String phase3Key(ExpressionMatrixProcessor.SampleResult result, BitSet globallyFilteredGenes, GeneIndex geneIndex, ExpressionMatrixProcessor.Options options) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);     // Every JVM has SHA-256
+        }
+        StringBuilder key = new StringBuilder();
+        key.append(result.filteredFile.getName()).append('\t')
+                .append(result.filteredFile.length()).append('\t')
+                .append(result.filteredFile.lastModified()).append('\t')
+                .append(options.twoColumnHeader).append('\t')
+                .append(options.compressOutput).append('\t')
+                .append(String.join(",", options.outputFormats)).append('\n');
+        digest.update(key.toString().getBytes(StandardCharsets.UTF_8));
+        for (int gene : result.geneOrder) {
+            if (!globallyFilteredGenes.get(gene)) {
+                digest.update(geneIndex.name(gene).getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) '\n');
+            }
+        }
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    /*
+     * Record that the sample's Phase 3 outputs were written for key.
+     */
+    static void savePhase3(ExpressionMatrixProcessor.SampleResult result, String key, List<File> outputs) throws IOException {
+        writeAtomically(phase3File(result.sampleName), out -> {
+            out.writeInt(PHASE3_MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(key);
+            out.writeInt(outputs.size());
+            for (File output : outputs) {
+                out.writeUTF(output.getName());
+                out.writeLong(size(output));
+            }
+        });
+    }
+
+    /*
+     * True if the sample's Phase 3 checkpoint was written for key and its
+     * outputs are still there, with the recorded sizes.
+     */
+    static boolean isPhase3Done(ExpressionMatrixProcessor.SampleResult result, String key, List<File> outputs) throws IOException {
+        File checkpoint = phase3File(result.sampleName);
+        if (!checkpoint.isFile()) {
+            return false;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(checkpoint)))) {
+            if (in.readInt() != PHASE3_MAGIC || in.readInt() != VERSION || !in.readUTF().equals(key) || in.readInt() != outputs.size()) {
+                return false;
+            }
+            for (File output : outputs) {
+                if (!in.readUTF().equals(output.getName()) || !output.exists() || in.readLong() != size(output)) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (EOFException e) {
+            return false;
+        }
+    }
+
+    /*
+     * The cohort as of the last completed Phase 2.
+     */
+    static class Cohort {
+        int geneMinCells;
+        final List<String> samples = new ArrayList<>();
+        final Map<String, Integer> geneCounts = new LinkedHashMap<>();  // Global expressing cells, in first-seen order
+        final Set<String> filteredGenes = new HashSet<>();
+    }
+
+    static File cohortFile() {
+        return new File("cohort.ckpt");
+    }
+
+    /*
+     * Record the samples and the global gene counts and filter of this run.
+     */
+    static void saveCohort(List<ExpressionMatrixProcessor.SampleResult> results, int[] firstSeenOrder, int genesSeen, int[] globalGeneCounts,
+                           BitSet globallyFilteredGenes, GeneIndex geneIndex, int geneMinCells) throws IOException {
+        writeAtomically(cohortFile(), out -> {
+            out.writeInt(COHORT_MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(geneMinCells);
+            out.writeInt(results.size());
+            for (ExpressionMatrixProcessor.SampleResult result : results) {
+                out.writeUTF(result.sampleName);
+            }
+            out.writeInt(genesSeen);
+            for (int i = 0; i < genesSeen; i++) {
+                int id = firstSeenOrder[i];
+                out.writeUTF(geneIndex.name(id));
+                out.writeInt(globalGeneCounts[id]);
+                out.writeBoolean(globallyFilteredGenes.get(id));
+            }
+        });
+    }
+
+    /*
+     * The cohort of the previous run, or null if there is none (or it cannot
+     * be read).
+     */
+    static Cohort loadCohort() throws IOException {
+        if (!cohortFile().isFile()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(cohortFile())))) {
+            if (in.readInt() != COHORT_MAGIC || in.readInt() != VERSION) {
+                return null;
+            }
+            Cohort cohort = new Cohort();
+            cohort.geneMinCells = in.readInt();
+            int samples = in.readInt();
+            for (int i = 0; i < samples; i++) {
+                cohort.samples.add(in.readUTF());
+            }
+            int genes = in.readInt();
+            for (int i = 0; i < genes; i++) {
+                String gene = in.readUTF();
+                cohort.geneCounts.put(gene, in.readInt());
+                if (in.readBoolean()) {
+                    cohort.filteredGenes.add(gene);
+                }
+            }
+            return cohort;
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    /*
+     * Print how this run's cohort differs from previous: samples added,
+     * reprocessed, unchanged and removed, genes whose global filter status
+     * changed, and the samples whose retained genes (and so transposed
+     * outputs) change as a result.
+     */
+    static void reportChanges(Cohort previous, List<ExpressionMatrixProcessor.SampleResult> results, BitSet globallyFilteredGenes,
+                              GeneIndex geneIndex, int geneMinCells) {
+        Set<String> current = new HashSet<>();
+        List<String> added = new ArrayList<>();
+        List<String> reprocessed = new ArrayList<>();
+        int unchanged = 0;
+        for (ExpressionMatrixProcessor.SampleResult result : results) {
+            current.add(result.sampleName);
+            if (!previous.samples.contains(result.sampleName)) {
+                added.add(result.sampleName);
+            } else if (!result.fromCheckpoint) {
+                reprocessed.add(result.sampleName);
+            } else {
+                unchanged++;
+            }
+        }
+        List<String> removed = new ArrayList<>();
+        for (String sample : previous.samples) {
+            if (!current.contains(sample)) {
+                removed.add(sample);
+            }
+        }
+        System.out.println("  📦 Cohort changes since the last run: " + added.size() + " added" + list(added) + ", "
+                + reprocessed.size() + " reprocessed" + list(reprocessed) + ", " + unchanged + " unchanged, " + removed.size() + " removed" + list(removed));
+        for (String sample : removed) {
+            System.out.println("  ⚠️ " + sample + " is no longer in the input directory: its outputs are left in place, but it no longer counts toward the gene filter.");
+        }
+
+        // Genes whose filter status differs from the previous run
+        BitSet changedGenes = new BitSet(geneIndex.size());
+        int newlyFiltered = 0;
+        int newlyKept = 0;
+        int newGenes = 0;
+        Set<Integer> counted = new HashSet<>();
+        for (ExpressionMatrixProcessor.SampleResult result : results) {
+            for (int id : result.geneOrder) {
+                if (!counted.add(id)) {
+                    continue;
+                }
+                String gene = geneIndex.name(id);
+                if (!previous.geneCounts.containsKey(gene)) {
+                    newGenes++;
+                    continue;
+                }
+                boolean wasFiltered = previous.filteredGenes.contains(gene);
+                if (wasFiltered != globallyFilteredGenes.get(id)) {
+                    changedGenes.set(id);
+                    if (wasFiltered) {
+                        newlyKept++;
+                    } else {
+                        newlyFiltered++;
+                    }
+                }
+            }
+        }
+        System.out.println("  🧬 Global gene filter: " + newlyFiltered + " genes newly filtered, " + newlyKept + " no longer filtered, "
+                + newGenes + " not seen before" + (geneMinCells != previous.geneMinCells ? " (--gene-min-cells was " + previous.geneMinCells + ")" : ""));
+
+        // Unchanged samples only need new transposed outputs if their retained genes changed
+        List<String> regenerate = new ArrayList<>(added);
+        regenerate.addAll(reprocessed);
+        for (ExpressionMatrixProcessor.SampleResult result : results) {
+            if (!result.fromCheckpoint || !previous.samples.contains(result.sampleName)) {
+                continue;
+            }
+            int changed = 0;
+            for (int id : result.geneOrder) {
+                if (changedGenes.get(id)) {
+                    changed++;
+                }
+            }
+            if (changed > 0) {
+                regenerate.add(result.sampleName);
+                System.out.println("  🔄 " + result.sampleName + ": " + changed + " retained genes changed; its transposed outputs will be regenerated.");
+            }
+        }
+        System.out.println("  📦 Transposed outputs to regenerate: " + regenerate.size() + " of " + results.size() + " samples" + list(regenerate));
+    }
+
+    private static String list(List<String> samples) {
+        return samples.isEmpty() ? "" : " (" + String.join(", ", samples) + ")";
+    }
+
+    private static File removedCellsFile(String sampleName) {
+        return new File("removed_cells_" + sampleName + ".txt");
+    }
+
+    private static ExpressionMatrixProcessor.SampleResult stale(String tag, String sampleName, String reason) {
+        System.out.println(tag + "  🔁 Phase 1 checkpoint for " + sampleName + " is out of date (" + reason + "); processing it again.");
+        return null;
+    }
+
+    /*
+     * CRC32 of the first and last FINGERPRINT_BYTES of file.
+     */
+    static long sampleCrc(File file) throws IOException {
+        CRC32 crc = new CRC32();
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            long length = in.length();
+            byte[] bytes = new byte[(int) Math.min(FINGERPRINT_BYTES, length)];
+            in.readFully(bytes);
+            crc.update(bytes);
+            if (length > FINGERPRINT_BYTES) {
+                in.seek(Math.max(FINGERPRINT_BYTES, length - FINGERPRINT_BYTES));
+                bytes = new byte[(int) (length - in.getFilePointer())];
+                in.readFully(bytes);
+                crc.update(bytes);
+            }
+        }
+        return crc.getValue();
+    }
+
+    /*
+     * Size of a file, or the total size of the files in a directory.
+     */
+    private static long size(File output) {
+        File[] files = output.isDirectory() ? output.listFiles() : new File[] {output};
+        long bytes = 0;
+        if (files != null) {
+            for (File file : files) {
+                bytes += file.length();
+            }
+        }
+        return bytes;
+    }
+
+    private interface Content {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private static void writeAtomically(File file, Content content) throws IOException {
+        File partial = new File(file.getPath() + ".partial");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(partial)))) {
+            content.write(out);
+        }
+        Files.move(partial.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
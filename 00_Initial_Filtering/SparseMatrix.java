@@ -0,0 +1,233 @@
+// -*- coding: utf-8 -*-
+// package ebbertLab.expressionMatrixProcessor;
+
+import java.util.*;
+
+/*
+ * Immutable sparse matrix in compressed sparse row (CSR) form: for row r, the
+ * nonzero entries are columnIndices[rowPointers[r] .. rowPointers[r + 1]) with
+ * the matching values, and column indices within a row are ascending.
+ *
+ * Expression matrices are stored genes x cells, so the row/column helpers map
+ * directly onto the filtering steps:
+ *     rowPositiveCounts()   cells expressing each gene (the gene filter)
+ *     transpose()           compressed column (CSC) form, i.e. cells x genes,
+ *                           which is the Phase 3 transpose
+ */
+public class SparseMatrix {
+
+    private final int rows;
+    private final int columns;
+    private final int[] rowPointers;
+    private final int[] columnIndices;
+    private final double[] values;
+
+    SparseMatrix(int rows, int columns, int[] rowPointers, int[] columnIndices, double[] values) {
+        this.rows = rows;
+        this.columns = columns;
+        this.rowPointers = rowPointers;
+        this.columnIndices = columnIndices;
+        this.values = values;
+    }
+
+    public int rows() {
+        return rows;
+    }
+
+    public int columns() {
+        return columns;
+    }
+
+    public int nonzeros() {
+        return rowPointers[rows];
+    }
+
+    public int rowStart(int row) {
+        return rowPointers[row];
+    }
+
+    public int rowEnd(int row) {
+        return rowPointers[row + 1];
+    }
+
+    /*
+     * Backing arrays (not copies); index them with rowStart()/rowEnd().
+     */
+    public int[] columnIndices() {
+        return columnIndices;
+    }
+
+    public double[] values() {
+        return values;
+    }
+
+    /*
+     * Approximate heap used by the backing arrays.
+     */
+    public long estimatedBytes() {
+        return estimatedBytes(rows(), nonzeros());
+    }
+
+    /*
+     * The same estimate for a matrix of rows with nonzeros in total.
+     */
+    static long estimatedBytes(long rows, long nonzeros) {
+        return (rows + 1) * Integer.BYTES + nonzeros * (Integer.BYTES + Double.BYTES);
+    }
+
+    /*
+     * Number of entries > 0 in each row.
+     */
+    public int[] rowPositiveCounts() {
+        int[] counts = new int[rows];
+        for (int r = 0; r < rows; r++) {
+            int count = 0;
+            for (int i = rowPointers[r]; i < rowPointers[r + 1]; i++) {
+                if (values[i] > 0) {
+                    count++;
+                }
+            }
+            counts[r] = count;
+        }
+        return counts;
+    }
+
+    /*
+     * Keep only the given columns (ascending indices into this matrix), which
+     * become columns 0..keep.length-1 of the result. Values are rounded to two
+     * decimals, as they are written to the filtered matrices, and entries that
+     * round to zero are dropped. The entries are counted first, so the result
+     * is allocated once at its exact size.
+     */
+    public SparseMatrix selectColumnsRounded(int[] keep) {
+        int[] newIndex = new int[columns];
+        Arrays.fill(newIndex, -1);
+        for (int i = 0; i < keep.length; i++) {
+            newIndex[keep[i]] = i;
+        }
+
+        int[] newPointers = new int[rows + 1];
+        int kept = 0;
+        for (int r = 0; r < rows; r++) {
+            for (int i = rowPointers[r]; i < rowPointers[r + 1]; i++) {
+                if (newIndex[columnIndices[i]] >= 0 && Math.round(values[i] * 100.0) != 0) {
+                    kept++;
+                }
+            }
+            newPointers[r + 1] = kept;
+        }
+
+        int[] newIndices = new int[kept];
+        double[] newValues = new double[kept];
+        int position = 0;
+        for (int r = 0; r < rows; r++) {
+            for (int i = rowPointers[r]; i < rowPointers[r + 1]; i++) {
+                int column = newIndex[columnIndices[i]];
+                long hundredths = Math.round(values[i] * 100.0);
+                if (column >= 0 && hundredths != 0) {
+                    newIndices[position] = column;
+                    newValues[position] = hundredths / 100.0;
+                    position++;
+                }
+            }
+        }
+        return new SparseMatrix(rows, keep.length, newPointers, newIndices, newValues);
+    }
+
+    /*
+     * Keep only the rows whose bit is set, in their original order.
+     */
+    public SparseMatrix selectRows(BitSet keep) {
+        int keptRows = 0;
+        int keptNonzeros = 0;
+        for (int r = keep.nextSetBit(0); r >= 0 && r < rows; r = keep.nextSetBit(r + 1)) {
+            keptRows++;
+            keptNonzeros += rowPointers[r + 1] - rowPointers[r];
+        }
+
+        int[] newPointers = new int[keptRows + 1];
+        int[] newIndices = new int[keptNonzeros];
+        double[] newValues = new double[keptNonzeros];
+        int row = 0;
+        int offset = 0;
+        for (int r = keep.nextSetBit(0); r >= 0 && r < rows; r = keep.nextSetBit(r + 1)) {
+            int length = rowPointers[r + 1] - rowPointers[r];
+            System.arraycopy(columnIndices, rowPointers[r], newIndices, offset, length);
+            System.arraycopy(values, rowPointers[r], newValues, offset, length);
+            offset += length;
+            newPointers[++row] = offset;
+        }
+        return new SparseMatrix(keptRows, columns, newPointers, newIndices, newValues);
+    }
+
+    /*
+     * Convert to compressed column form. The result is returned as the CSR
+     * matrix of the transpose (CSR of A^T == CSC of A), built with a counting
+     * sort over column indices, so rows of the result have ascending indices.
+     */
+    public SparseMatrix transpose() {
+        int nonzeros = nonzeros();
+        int[] newPointers = new int[columns + 1];
+        for (int i = 0; i < nonzeros; i++) {
+            newPointers[columnIndices[i] + 1]++;
+        }
+        for (int c = 0; c < columns; c++) {
+            newPointers[c + 1] += newPointers[c];
+        }
+
+        int[] next = Arrays.copyOf(newPointers, columns);
+        int[] newIndices = new int[nonzeros];
+        double[] newValues = new double[nonzeros];
+        for (int r = 0; r < rows; r++) {
+            for (int i = rowPointers[r]; i < rowPointers[r + 1]; i++) {
+                int position = next[columnIndices[i]]++;
+                newIndices[position] = r;
+                newValues[position] = values[i];
+            }
+        }
+        return new SparseMatrix(columns, rows, newPointers, newIndices, newValues);
+    }
+
+    /*
+     * Row-by-row construction with growable primitive arrays.
+     */
+    public static class Builder {
+
+        private final int columns;
+        private int[] rowPointers = new int[65];
+        private int[] columnIndices = new int[1024];
+        private double[] values = new double[1024];
+        private int rows;
+
+        public Builder(int columns) {
+            this.columns = columns;
+        }
+
+        /*
+         * Append a row given its first size nonzero entries, with ascending
+         * column indices.
+         */
+        public void addRow(int[] indices, double[] rowValues, int size) {
+            int start = rowPointers[rows];
+            if (rows + 2 > rowPointers.length) {
+                rowPointers = Arrays.copyOf(rowPointers, rowPointers.length * 2);
+            }
+            if (start + size > columnIndices.length) {
+                int capacity = Math.max(start + size, columnIndices.length * 2);
+                columnIndices = Arrays.copyOf(columnIndices, capacity);
+                values = Arrays.copyOf(values, capacity);
+            }
+            System.arraycopy(indices, 0, columnIndices, start, size);
+            System.arraycopy(rowValues, 0, values, start, size);
+            rowPointers[++rows] = start + size;
+        }
+
+        public SparseMatrix build() {
+            int nonzeros = rowPointers[rows];
+            return new SparseMatrix(rows, columns,
+                    Arrays.copyOf(rowPointers, rows + 1),
+                    Arrays.copyOf(columnIndices, nonzeros),
+                    Arrays.copyOf(values, nonzeros));
+        }
+    }
+}
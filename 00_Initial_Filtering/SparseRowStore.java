@@ -0,0 +1,411 @@
+// -*- coding: utf-8 -*-
+// package ebbertLab.expressionMatrixProcessor;
+
+import java.io.*;
+import java.util.*;
+
+/*
+ * Append-only store of matrix rows in sparse form (nonzero column indices and
+ * their values, plus the row's label columns).
+ *
+ * Used by the single-pass Phase 1 mode: each raw row is parsed once, added to
+ * the column sums (accumulated here over the nonzero entries), and kept until
+ * the cell threshold is known. Rows are
+ * held in memory as compressed primitive arrays, which grow by doubling.
+ * The budget is checked against the arrays' allocated capacity, and before
+ * they grow, since the old and the new arrays are both held while copying:
+ * if the grown arrays would not fit, the buffered rows are appended to a
+ * binary spill file instead and the in-memory buffers are reused. Rows are
+ * replayed in insertion order: first everything that was spilled, then what
+ * is still in memory.
+ *
+ * Spill record layout (DataOutputStream, big-endian):
+ *     label columns (writeUTF each), nonzero count (int),
+ *     column indices (int each), values (double each)
+ *
+ * If nothing was spilled, toMatrix() exposes the rows as a SparseMatrix
+ * without copying them.
+ */
+public class SparseRowStore implements Closeable {
+
+    // Rough per-object costs used for the memory estimate
+    private static final long BYTES_PER_NONZERO = Integer.BYTES + Double.BYTES;
+    private static final long BYTES_PER_ROW = Integer.BYTES + 64;
+    private static final long BYTES_PER_LABEL = 48;
+
+    private static final int INITIAL_ROWS = 64;
+    private static final int INITIAL_NONZEROS = 1024;
+
+    private final int labelColumns;
+    private final int numColumns;
+    private final double[] columnSums;
+    private final long memoryBudgetBytes;
+    private final File spillDir;
+    private final String spillPrefix;
+
+    // In-memory rows in compressed row form: row r owns [rowEnds[r-1], rowEnds[r])
+    private String[] labels;
+    private int[] rowEnds = new int[INITIAL_ROWS];
+    private int[] indices;
+    private double[] values;
+    private int rowCount;       // Rows currently in memory
+    private int nonzeroCount;   // Nonzeros currently in memory
+
+    private File spillFile;
+    private DataOutputStream spillOut;
+    private long spilledRows;
+    private long spilledBytes;
+    private boolean sealed;
+
+    public SparseRowStore(int labelColumns, int numColumns, long memoryBudgetBytes, File spillDir, String spillPrefix) {
+        this.labelColumns = labelColumns;
+        this.numColumns = numColumns;
+        this.columnSums = new double[numColumns];
+        this.memoryBudgetBytes = memoryBudgetBytes;
+        this.spillDir = spillDir;
+        this.spillPrefix = spillPrefix;
+        this.labels = new String[INITIAL_ROWS * labelColumns];
+        // Room for a whole row, so the arrays always grow by doubling
+        this.indices = new int[(int) capacity(INITIAL_NONZEROS, numColumns)];
+        this.values = new double[indices.length];
+    }
+
+    /*
+     * Append the parser's current row: its label columns and the nonzero
+     * entries among the first numColumns values.
+     */
+    public void addRow(TabDelimitedParser row) throws IOException {
+        if (sealed) {
+            throw new IllegalStateException("Rows cannot be added after the store has been read.");
+        }
+        double[] rowValues = row.values();
+
+        ensureCapacity(numColumns);     // The row has at most numColumns nonzeros
+        for (int c = 0; c < labelColumns; c++) {
+            labels[rowCount * labelColumns + c] = row.label(c);
+        }
+        for (int i = 0; i < numColumns; i++) {
+            double value = rowValues[i];
+            if (value != 0.0) {
+                indices[nonzeroCount] = i;
+                values[nonzeroCount] = value;
+                nonzeroCount++;
+                columnSums[i] += value;
+            }
+        }
+        rowEnds[rowCount++] = nonzeroCount;
+
+        if (allocatedBytes() > memoryBudgetBytes) {
+            spill();
+        }
+    }
+
+    /*
+     * Append every row of an already sparse block of rows (for example one
+     * chunk parsed by ChunkedMatrixParser), in order. rowLabels holds
+     * labelColumns entries per row.
+     */
+    public void addRows(SparseMatrix block, String[] rowLabels) throws IOException {
+        if (sealed) {
+            throw new IllegalStateException("Rows cannot be added after the store has been read.");
+        }
+        int[] blockIndices = block.columnIndices();
+        double[] blockValues = block.values();
+
+        for (int r = 0; r < block.rows(); r++) {
+            int start = block.rowStart(r);
+            int size = block.rowEnd(r) - start;
+            ensureCapacity(size);
+            System.arraycopy(rowLabels, r * labelColumns, labels, rowCount * labelColumns, labelColumns);
+
+            System.arraycopy(blockIndices, start, indices, nonzeroCount, size);
+            System.arraycopy(blockValues, start, values, nonzeroCount, size);
+            for (int i = start; i < start + size; i++) {
+                columnSums[blockIndices[i]] += blockValues[i];
+            }
+            nonzeroCount += size;
+            rowEnds[rowCount++] = nonzeroCount;
+
+            if (allocatedBytes() > memoryBudgetBytes) {
+                spill();
+            }
+        }
+    }
+
+    /*
+     * Per-column sums of all rows added so far. Zeros never change a sum, so
+     * this equals summing the dense rows in order.
+     */
+    public double[] columnSums() {
+        return columnSums;
+    }
+
+    /*
+     * Total rows added so far.
+     */
+    public long rowCount() {
+        return spilledRows + rowCount;
+    }
+
+    /*
+     * Nonzeros of the rows currently held in memory.
+     */
+    public long nonzeroCount() {
+        return nonzeroCount;
+    }
+
+    public boolean hasSpilled() {
+        return spillFile != null;
+    }
+
+    public long spilledBytes() {
+        return spilledBytes;
+    }
+
+    /*
+     * Approximate heap used by the rows currently held in memory.
+     */
+    public long estimatedMemoryBytes() {
+        return estimatedMemoryBytes(rowCount, nonzeroCount, labelColumns);
+    }
+
+    /*
+     * Approximate heap held by the in-memory buffers at their current
+     * capacity, which is what the budget is checked against. Up to twice
+     * estimatedMemoryBytes(), since the arrays grow by doubling.
+     */
+    public long allocatedBytes() {
+        return estimatedMemoryBytes(rowEnds.length, indices.length, labelColumns);
+    }
+
+    /*
+     * The same estimate for a store holding rows with nonzeros in total
+     * (used to plan before any rows are read).
+     */
+    static long estimatedMemoryBytes(long rows, long nonzeros, int labelColumns) {
+        return nonzeros * BYTES_PER_NONZERO + rows * (BYTES_PER_ROW + labelColumns * BYTES_PER_LABEL);
+    }
+
+    /*
+     * Upper bound on allocatedBytes() of a store of numColumns columns that
+     * has taken rows with nonzeros in total without spilling. The arrays
+     * always have room for one more row.
+     */
+    static long estimatedAllocatedBytes(long rows, long nonzeros, int numColumns, int labelColumns) {
+        return estimatedMemoryBytes(capacity(INITIAL_ROWS, rows), capacity(INITIAL_NONZEROS, nonzeros + numColumns), labelColumns);
+    }
+
+    /*
+     * Most heap held by that store while it grows: the last doubling holds
+     * the old arrays (half the final capacity) next to the new ones.
+     */
+    static long estimatedPeakBytes(long rows, long nonzeros, int numColumns, int labelColumns) {
+        return estimatedAllocatedBytes(rows, nonzeros, numColumns, labelColumns) * 3 / 2;
+    }
+
+    private static long capacity(long initial, long size) {
+        long capacity = initial;
+        while (capacity < size) {
+            capacity *= 2;
+        }
+        return capacity;
+    }
+
+    /*
+     * The stored rows as a CSR matrix sharing this store's arrays. Only
+     * available if nothing was spilled; no rows can be added afterwards.
+     */
+    public SparseMatrix toMatrix() {
+        if (hasSpilled()) {
+            throw new IllegalStateException("Rows were spilled to disk; use cursor() instead.");
+        }
+        sealed = true;
+        int[] rowPointers = new int[rowCount + 1];
+        System.arraycopy(rowEnds, 0, rowPointers, 1, rowCount);
+        return new SparseMatrix(rowCount, numColumns, rowPointers, indices, values);
+    }
+
+    /*
+     * Label column of an in-memory row (see toMatrix()).
+     */
+    public String label(int row, int column) {
+        return labels[row * labelColumns + column];
+    }
+
+    /*
+     * Replay all rows in insertion order. No rows can be added afterwards.
+     */
+    public RowCursor cursor() throws IOException {
+        sealed = true;
+        if (spillOut != null) {
+            spillOut.close();
+            spillOut = null;
+        }
+        return new RowCursor();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (spillOut != null) {
+            spillOut.close();
+            spillOut = null;
+        }
+        if (spillFile != null) {
+            spillFile.delete();
+        }
+    }
+
+    /*
+     * Make room for one more row with up to rowNonzeros nonzeros. If the
+     * arrays have to grow and the old and new arrays together would exceed
+     * the budget, the rows in memory are spilled first; the arrays then only
+     * grow if a single row does not fit in them.
+     */
+    private void ensureCapacity(int rowNonzeros) throws IOException {
+        long rowSlots = rowCount == rowEnds.length ? 2L * rowEnds.length : 0;
+        long nonzeroSlots = nonzeroCount + rowNonzeros > indices.length ? Math.max(nonzeroCount + (long) rowNonzeros, 2L * indices.length) : 0;
+        if (rowSlots == 0 && nonzeroSlots == 0) {
+            return;
+        }
+        if (rowCount > 0 && allocatedBytes() + estimatedMemoryBytes(rowSlots, nonzeroSlots, labelColumns) > memoryBudgetBytes) {
+            spill();
+            rowSlots = 0;
+            nonzeroSlots = rowNonzeros > indices.length ? Math.max(rowNonzeros, 2L * indices.length) : 0;
+        }
+        if (rowSlots > 0) {
+            rowEnds = Arrays.copyOf(rowEnds, (int) rowSlots);
+            labels = Arrays.copyOf(labels, (int) rowSlots * labelColumns);
+        }
+        if (nonzeroSlots > 0) {
+            indices = Arrays.copyOf(indices, (int) nonzeroSlots);
+            values = Arrays.copyOf(values, (int) nonzeroSlots);
+        }
+    }
+
+    /*
+     * Append all in-memory rows to the spill file and clear the buffers
+     * (keeping their capacity for the next batch of rows).
+     */
+    private void spill() throws IOException {
+        if (spillOut == null) {
+            spillFile = File.createTempFile(spillPrefix, ".spill", spillDir);
+            spillFile.deleteOnExit();
+            spillOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(spillFile), 1 << 20));
+        }
+
+        int start = 0;
+        for (int r = 0; r < rowCount; r++) {
+            for (int c = 0; c < labelColumns; c++) {
+                spillOut.writeUTF(labels[r * labelColumns + c]);
+                labels[r * labelColumns + c] = null;
+            }
+            int end = rowEnds[r];
+            spillOut.writeInt(end - start);
+            for (int i = start; i < end; i++) {
+                spillOut.writeInt(indices[i]);
+            }
+            for (int i = start; i < end; i++) {
+                spillOut.writeDouble(values[i]);
+            }
+            start = end;
+        }
+        spillOut.flush();
+        spilledBytes = spillFile.length();
+        spilledRows += rowCount;
+        rowCount = 0;
+        nonzeroCount = 0;
+    }
+
+    /*
+     * Sequential view over the stored rows. The index and value arrays are
+     * reused between rows; only the first size() entries are valid.
+     */
+    public class RowCursor implements Closeable {
+
+        private DataInputStream spillIn;
+        private long spillRowsLeft = spilledRows;
+        private int memoryRow = -1;
+
+        private final String[] rowLabels = new String[labelColumns];
+        private int[] rowIndices = new int[16];
+        private double[] rowValues = new double[16];
+        private int rowSize;
+
+        private RowCursor() throws IOException {
+            if (spillFile != null && spilledRows > 0) {
+                spillIn = new DataInputStream(new BufferedInputStream(new FileInputStream(spillFile), 1 << 20));
+            }
+        }
+
+        public boolean next() throws IOException {
+            if (spillRowsLeft > 0) {
+                readSpilledRow();
+                spillRowsLeft--;
+                if (spillRowsLeft == 0) {
+                    spillIn.close();
+                    spillIn = null;
+                }
+                return true;
+            }
+            if (memoryRow + 1 >= rowCount) {
+                return false;
+            }
+            memoryRow++;
+            int start = memoryRow == 0 ? 0 : rowEnds[memoryRow - 1];
+            rowSize = rowEnds[memoryRow] - start;
+            ensureCapacity(rowSize);
+            System.arraycopy(indices, start, rowIndices, 0, rowSize);
+            System.arraycopy(values, start, rowValues, 0, rowSize);
+            for (int c = 0; c < labelColumns; c++) {
+                rowLabels[c] = labels[memoryRow * labelColumns + c];
+            }
+            return true;
+        }
+
+        public String label(int i) {
+            return rowLabels[i];
+        }
+
+        /*
+         * Expand the current row into dense (length = number of columns),
+         * zeroing whatever the previous row left there. Returns dense.
+         */
+        public double[] toDense(double[] dense) {
+            Arrays.fill(dense, 0.0);
+            for (int i = 0; i < rowSize; i++) {
+                dense[rowIndices[i]] = rowValues[i];
+            }
+            return dense;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (spillIn != null) {
+                spillIn.close();
+                spillIn = null;
+            }
+        }
+
+        private void readSpilledRow() throws IOException {
+            for (int c = 0; c < labelColumns; c++) {
+                rowLabels[c] = spillIn.readUTF();
+            }
+            rowSize = spillIn.readInt();
+            ensureCapacity(rowSize);
+            for (int i = 0; i < rowSize; i++) {
+                rowIndices[i] = spillIn.readInt();
+            }
+            for (int i = 0; i < rowSize; i++) {
+                rowValues[i] = spillIn.readDouble();
+            }
+        }
+
+        private void ensureCapacity(int size) {
+            if (size > rowIndices.length) {
+                int capacity = Math.max(size, rowIndices.length * 2);
+                rowIndices = new int[capacity];
+                rowValues = new double[capacity];
+            }
+        }
+    }
+}
@@ -0,0 +1,346 @@
+// -*- coding: utf-8 -*-
+// package ebbertLab.expressionMatrixProcessor;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/*
+ * Writes synthetic expression matrices in the RawData format, for scale and
+ * regression tests of ExpressionMatrixProcessor without real data.
+ *
+ * The matrices look like PIPseq count matrices:
+ *   - Each gene has an expression level (log-normal) and each cell a
+ *     sequencing depth (log-normal); an entry is nonzero with probability
+ *     density x level x depth, so most entries are zero.
+ *   - Nonzero counts are 1 + Poisson(gamma-distributed rate), a zero-truncated
+ *     negative-binomial-like distribution. A share of them are written as
+ *     the fractional values multi-mapped reads produce: k/3 (1.333333), k/2
+ *     (0.5) and k + 0.000001 (2.000001).
+ *   - A share of cells have 2% of the normal depth (empty droplets), so they
+ *     fall below --cell-threshold, and a share of genes are expressed in only
+ *     about 3 cells, so they fall below --gene-min-cells.
+ *
+ * Every sample has the same genes in the same order, with the same
+ * expression levels; cells and their depths differ per sample. --mismatch
+ * changes the gene list of the last sample, to exercise the gene order check.
+ * Output is deterministic for a given --seed.
+ *
+ * Usage:
+ *     java SyntheticMatrixGenerator --output-dir RawData_synthetic --samples 3 --genes 20000 --cells 100000
+ */
+public class SyntheticMatrixGenerator {
+
+    private static final double LOW_DEPTH_FACTOR = 0.02;
+    private static final double RARE_GENE_CELLS = 3.0;  // Expected cells expressing a rare gene
+    private static final double MAX_PROBABILITY = 0.95;
+
+    /*
+     * Generator settings, with the command-line defaults.
+     */
+    static class Settings {
+        int genes = 5000;
+        int cells = 1000;
+        boolean twoColumnHeader = false;
+        double density = 0.1;           // Nonzero share for an average gene in an average cell
+        double lowDepthShare = 0.1;     // Share of cells with very low depth
+        double rareGeneShare = 0.1;     // Share of genes expressed in only a few cells
+        double fractionalShare = 0.1;   // Share of nonzero values written as fractions
+        long seed = 1;
+    }
+
+    private final Settings settings;
+    private final String[] geneLabels;  // Label columns of each gene row, tab-separated
+    private final double[] geneLevels;  // Relative expression level; 0 for rare genes
+
+    public SyntheticMatrixGenerator(Settings settings) {
+        this.settings = settings;
+        this.geneLabels = new String[settings.genes];
+        this.geneLevels = new double[settings.genes];
+
+        Random random = new Random(settings.seed);
+        int gene = 0;
+        int transcriptsLeft = 0;
+        for (int g = 0; g < settings.genes; g++) {
+            if (settings.twoColumnHeader) {
+                // Isoforms: 1-4 transcripts per gene
+                if (transcriptsLeft == 0) {
+                    gene++;
+                    transcriptsLeft = 1 + random.nextInt(4);
+                }
+                transcriptsLeft--;
+                geneLabels[g] = String.format("ENST%011d\tENSG%011d", g + 1, gene);
+            } else {
+                geneLabels[g] = String.format("ENSG%011d", g + 1);
+            }
+            boolean rare = random.nextDouble() < settings.rareGeneShare;
+            geneLevels[g] = rare ? 0.0 : Math.exp(random.nextGaussian() - 0.5);   // Mean 1
+        }
+    }
+
+    /*
+     * Gene order of a sample: every gene in order, except for the last sample
+     * with mismatch "swap" (two neighbouring genes exchanged) or "drop" (one
+     * gene left out).
+     */
+    int[] geneOrder(int sample, int samples, String mismatch) {
+        int[] order = new int[settings.genes];
+        for (int g = 0; g < order.length; g++) {
+            order[g] = g;
+        }
+        if (mismatch == null || sample != samples - 1 || order.length < 2) {
+            return order;
+        }
+        int middle = order.length / 2;
+        if (mismatch.equals("swap")) {
+            order[middle - 1] = middle;
+            order[middle] = middle - 1;
+            return order;
+        }
+        int[] dropped = new int[order.length - 1];
+        System.arraycopy(order, 0, dropped, 0, middle);
+        System.arraycopy(order, middle + 1, dropped, middle, order.length - middle - 1);
+        return dropped;
+    }
+
+    /*
+     * Write one sample's matrix (header and the genes in geneOrder) and
+     * return the number of nonzero values.
+     */
+    public long writeSample(MatrixTextWriter writer, String sampleName, int sample, int[] geneOrder) throws IOException {
+        Random cellRandom = new Random(settings.seed * 1_000_003L + sample);
+        int cells = settings.cells;
+        double[] depths = new double[cells];
+        for (int c = 0; c < cells; c++) {
+            depths[c] = Math.exp(0.4 * cellRandom.nextGaussian() - 0.08);          // Mean 1
+            if (cellRandom.nextDouble() < settings.lowDepthShare) {
+                depths[c] *= LOW_DEPTH_FACTOR;
+            }
+        }
+
+        writer.write(settings.twoColumnHeader ? "TranscriptID\tGeneID" : "GeneID");
+        for (int c = 0; c < cells; c++) {
+            writer.writeTab();
+            writer.write(cellID(sampleName, c));
+        }
+        writer.write('\n');
+
+        long nonzeros = 0;
+        double rareProbability = Math.min(1.0, RARE_GENE_CELLS / Math.max(cells, 1));
+        for (int g : geneOrder) {
+            // Each gene's values come from its own stream, so rows do not depend on gene order
+            SplittableRandom random = new SplittableRandom(settings.seed * 1_000_003L + sample * 7_919L * settings.genes + g);
+            double level = geneLevels[g];
+            double baseProbability = settings.density * level;
+
+            writer.write(geneLabels[g]);
+            for (int c = 0; c < cells; c++) {
+                double probability = level == 0.0 ? rareProbability : Math.min(MAX_PROBABILITY, baseProbability * depths[c]);
+                writer.writeTab();
+                if (random.nextDouble() >= probability) {
+                    writer.write('0');
+                    continue;
+                }
+                double mean = level == 0.0 ? 1.0 : level * depths[c];
+                writeCount(writer, random, mean);
+                nonzeros++;
+            }
+            writer.write('\n');
+        }
+        return nonzeros;
+    }
+
+    /*
+     * A nonzero count: 1 + Poisson(rate) with a gamma(2)-distributed rate of
+     * mean 2 x mean, written as an integer or, for fractionalShare of the
+     * values, as a fraction of it.
+     */
+    private void writeCount(MatrixTextWriter writer, SplittableRandom random, double mean) throws IOException {
+        double gamma = -Math.log((1.0 - random.nextDouble()) * (1.0 - random.nextDouble())) / 2.0;    // Gamma(2), mean 1
+        long count = 1 + poisson(random, 2.0 * mean * gamma);
+        if (random.nextDouble() >= settings.fractionalShare) {
+            writer.writeLong(count);
+            return;
+        }
+        double kind = random.nextDouble();
+        long micros;    // Value in millionths
+        if (kind < 0.5) {
+            micros = Math.round(count * 1_000_000.0 / 3.0);     // 1.333333
+        } else if (kind < 0.75) {
+            micros = count * 500_000;                           // 0.5
+        } else {
+            micros = count * 1_000_000 + 1;                     // 2.000001
+        }
+        writeMicros(writer, micros);
+    }
+
+    /*
+     * Write millionths as a decimal without trailing zeros: 1333333 -> 1.333333,
+     * 500000 -> 0.5, 3000000 -> 3.
+     */
+    private static void writeMicros(MatrixTextWriter writer, long micros) throws IOException {
+        writer.writeLong(micros / 1_000_000);
+        int fraction = (int) (micros % 1_000_000);
+        if (fraction == 0) {
+            return;
+        }
+        writer.write('.');
+        int digits = 6;
+        while (fraction % 10 == 0) {
+            fraction /= 10;
+            digits--;
+        }
+        for (int divisor = pow10(digits - 1); divisor > 0; divisor /= 10) {
+            writer.write((char) ('0' + fraction / divisor % 10));
+        }
+    }
+
+    private static int pow10(int exponent) {
+        int value = 1;
+        for (int i = 0; i < exponent; i++) {
+            value *= 10;
+        }
+        return value;
+    }
+
+    private static long poisson(SplittableRandom random, double rate) {
+        if (rate > 30) {
+            // Normal approximation for large rates (Box-Muller)
+            double gaussian = Math.sqrt(-2.0 * Math.log(1.0 - random.nextDouble())) * Math.cos(2.0 * Math.PI * random.nextDouble());
+            return Math.max(0, Math.round(rate + Math.sqrt(rate) * gaussian));
+        }
+        double limit = Math.exp(-rate);
+        double product = random.nextDouble();
+        long count = 0;
+        while (product > limit) {
+            product *= random.nextDouble();
+            count++;
+        }
+        return count;
+    }
+
+    /*
+     * Cell ID: the sample name and a 16-base barcode derived from the index.
+     */
+    static String cellID(String sampleName, int cell) {
+        char[] barcode = new char[16];
+        long bits = (cell + 1L) * 0x9E3779B97F4A7C15L;     // Spread neighbouring indices over the barcode space
+        for (int i = 0; i < barcode.length; i++) {
+            barcode[i] = "ACGT".charAt((int) (bits >>> (2 * i)) & 3);
+        }
+        return sampleName + "_" + new String(barcode);
+    }
+
+    public static void main(String[] args) throws IOException {
+
+        // === Command-line Argument Parsing ===
+        Settings settings = new Settings();
+        String outputDir = "SyntheticData";
+        int samples = 1;
+        String mismatch = null;
+        boolean gzip = false;
+        int threads = 1;
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--output-dir":
+                    outputDir = value(args, i++);
+                    break;
+                case "--samples":
+                    samples = Integer.parseInt(value(args, i++));
+                    break;
+                case "--genes":
+                    settings.genes = Integer.parseInt(value(args, i++));
+                    break;
+                case "--cells":
+                    settings.cells = Integer.parseInt(value(args, i++));
+                    break;
+                case "--two-column-header":
+                    settings.twoColumnHeader = true;
+                    break;
+                case "--density":
+                    settings.density = Double.parseDouble(value(args, i++));
+                    break;
+                case "--low-depth-share":
+                    settings.lowDepthShare = Double.parseDouble(value(args, i++));
+                    break;
+                case "--rare-gene-share":
+                    settings.rareGeneShare = Double.parseDouble(value(args, i++));
+                    break;
+                case "--fractional-share":
+                    settings.fractionalShare = Double.parseDouble(value(args, i++));
+                    break;
+                case "--seed":
+                    settings.seed = Long.parseLong(value(args, i++));
+                    break;
+                case "--mismatch":
+                    mismatch = value(args, i++);
+                    if (!mismatch.equals("swap") && !mismatch.equals("drop")) {
+                        System.out.println("❌ Unknown --mismatch: " + mismatch + " (expected swap or drop)");
+                        System.exit(1);
+                    }
+                    break;
+                case "--gzip":
+                    gzip = true;
+                    break;
+                case "--threads":
+                    threads = Math.max(1, Integer.parseInt(value(args, i++)));
+                    break;
+                default:
+                    System.out.println("❌ Unknown argument: " + args[i]);
+                    usage();
+            }
+        }
+
+        if (mismatch != null && samples < 2) {
+            System.out.println("❌ --mismatch needs at least 2 samples");
+            System.exit(1);
+        }
+
+        File directory = new File(outputDir);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            System.out.println("❌ Could not create " + outputDir);
+            System.exit(1);
+        }
+
+        System.out.println("🧪 Generating " + samples + " sample(s) of " + settings.genes + (settings.twoColumnHeader ? " isoforms" : " genes")
+                + " x " + settings.cells + " cells in " + outputDir + (mismatch != null ? " (last sample: " + mismatch + ")" : ""));
+
+        SyntheticMatrixGenerator generator = new SyntheticMatrixGenerator(settings);
+        boolean compress = gzip;
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int s = 0; s < samples; s++) {
+            int sample = s;
+            String sampleName = "Sample" + (s + 1);
+            File file = new File(directory, sampleName + ".txt" + (gzip ? ".gz" : ""));
+            int[] geneOrder = generator.geneOrder(sample, samples, mismatch);
+            tasks.add(() -> {
+                long start = System.nanoTime();
+                long nonzeros;
+                try (MatrixTextWriter writer = new MatrixTextWriter(CompressedStreams.openOutput(file, compress), 1 << 20)) {
+                    nonzeros = generator.writeSample(writer, sampleName, sample, geneOrder);
+                }
+                System.out.printf("  ✅ %s: %d rows, %.1f%% nonzero, %.1f MB in %.2f seconds\n", file.getName(), geneOrder.length,
+                        100.0 * nonzeros / Math.max(1L, (long) geneOrder.length * settings.cells), file.length() / (1024.0 * 1024.0),
+                        (System.nanoTime() - start) / 1_000_000_000.0);
+                return null;
+            });
+        }
+        ExpressionMatrixProcessor.runAll(tasks, threads);
+    }
+
+    private static String value(String[] args, int i) {
+        if (i + 1 >= args.length) {
+            System.out.println("❌ Missing value for " + args[i]);
+            System.exit(1);
+        }
+        return args[i + 1];
+    }
+
+    private static void usage() {
+        System.out.println("Usage: java SyntheticMatrixGenerator [--output-dir DIR] [--samples N] [--genes N] [--cells N] [--two-column-header]"
+                + " [--density P] [--low-depth-share P] [--rare-gene-share P] [--fractional-share P] [--seed N]"
+                + " [--mismatch swap|drop] [--gzip] [--threads N]");
+        System.exit(1);
+    }
+}
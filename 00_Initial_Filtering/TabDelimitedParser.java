@@ -0,0 +1,446 @@
+// -*- coding: utf-8 -*-
+// package ebbertLab.expressionMatrixProcessor;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/*
+ * Byte-level tokenizer for tab-delimited expression matrices.
+ *
+ * Replaces the line.split("\t") + Double.parseDouble() pair that used to run
+ * for every row. The parser scans a reusable byte buffer for tab and newline
+ * offsets and parses each expression value straight into a reusable double[],
+ * so no per-row objects are created. Label columns (gene ID, or transcript ID
+ * and gene ID) are only turned into Strings when the caller asks for them.
+ *
+ * Bytes come either from an InputStream (copied into a heap buffer) or, for
+ * plain files, straight from memory-mapped windows of a FileChannel, which
+ * avoids both charset decoding and copying. Mapped windows are at most
+ * MAPPED_WINDOW_SIZE bytes, so files larger than 2 GB are read by remapping
+ * the next window at the start of the first incomplete line.
+ *
+ * Usage:
+ *     TabDelimitedParser parser = new TabDelimitedParser(new FileInputStream(file), labelColumns);
+ *     // or TabDelimitedParser.mapped(file, labelColumns)
+ *     String[] header = parser.readHeader();
+ *     while (parser.next()) {
+ *         double[] values = parser.values();   // valueCount() entries, reused between rows
+ *         ...
+ *     }
+ */
+public class TabDelimitedParser implements Closeable {
+
+    static final int DEFAULT_BUFFER_SIZE = 1 << 20;
+    static final int MAPPED_WINDOW_SIZE = 256 << 20;
+
+    /*
+     * Largest mantissa that can be converted to a double without rounding, and
+     * the powers of ten that are exactly representable as doubles. Dividing one
+     * by the other is then correctly rounded, i.e. identical to Double.parseDouble().
+     */
+    private static final long MAX_EXACT_MANTISSA = 1L << 53;
+    private static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+        1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    private final int labelColumns;
+    private final Charset charset = Charset.defaultCharset(); // Same charset FileReader used
+
+    // Stream source (null when mapped)
+    private final InputStream in;
+
+    // Mapped source (null when reading a stream)
+    private final FileChannel channel;
+    private final boolean ownsChannel;
+    private final long channelEnd;
+
+    private ByteBuffer buffer;
+    private int position;   // Start of unread data in buffer
+    private int limit;      // End of valid data in buffer
+    private long bufferOffset; // Source offset of buffer index 0
+    private boolean endOfStream;
+
+    // Offsets of the current row inside buffer
+    private int lineStart;
+    private int lineEnd;
+    private final int[] labelStarts;
+    private final int[] labelEnds;
+    private double[] values = new double[0];
+    private int valueCount;
+    private long lineNumber;
+    private long readNanos;     // Time spent in stream reads and window mapping
+
+    public TabDelimitedParser(InputStream in, int labelColumns) {
+        this(in, labelColumns, DEFAULT_BUFFER_SIZE);
+    }
+
+    public TabDelimitedParser(InputStream in, int labelColumns, int bufferSize) {
+        this.in = in;
+        this.channel = null;
+        this.ownsChannel = false;
+        this.channelEnd = 0;
+        this.labelColumns = labelColumns;
+        this.buffer = ByteBuffer.allocate(Math.max(bufferSize, 1024));
+        this.labelStarts = new int[labelColumns];
+        this.labelEnds = new int[labelColumns];
+    }
+
+    /*
+     * Parse bytes [start, end) of channel through memory-mapped windows.
+     * The channel is closed by close() only if ownsChannel is set.
+     */
+    public TabDelimitedParser(FileChannel channel, long start, long end, int labelColumns, boolean ownsChannel) {
+        this.in = null;
+        this.channel = channel;
+        this.ownsChannel = ownsChannel;
+        this.channelEnd = end;
+        this.labelColumns = labelColumns;
+        this.buffer = ByteBuffer.allocate(0);
+        this.bufferOffset = start;
+        this.labelStarts = new int[labelColumns];
+        this.labelEnds = new int[labelColumns];
+    }
+
+    /*
+     * Parse bytes [0, limit) of batch, which hold whole lines (e.g. a batch
+     * cut by RowPipeline). Line numbers start at firstLineNumber.
+     */
+    public TabDelimitedParser(ByteBuffer batch, int labelColumns, long firstLineNumber) {
+        this.in = null;
+        this.channel = null;
+        this.ownsChannel = false;
+        this.channelEnd = 0;
+        this.labelColumns = labelColumns;
+        this.buffer = batch;
+        this.limit = batch.limit();
+        this.endOfStream = true;
+        this.lineNumber = firstLineNumber - 1;
+        this.labelStarts = new int[labelColumns];
+        this.labelEnds = new int[labelColumns];
+    }
+
+    /*
+     * Parser over a whole file using memory-mapped windows.
+     */
+    public static TabDelimitedParser mapped(File file, int labelColumns) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        return new TabDelimitedParser(channel, 0, channel.size(), labelColumns, true);
+    }
+
+    /*
+     * Read the header line and split it on tabs. Trailing empty fields are
+     * dropped, matching the String.split("\t") behavior the processor relied on.
+     * Returns null if the stream is empty.
+     */
+    public String[] readHeader() throws IOException {
+        if (!readLine()) {
+            return null;
+        }
+        List<String> fields = new ArrayList<>();
+        int fieldStart = lineStart;
+        for (int i = lineStart; i <= lineEnd; i++) {
+            if (i == lineEnd || buffer.get(i) == '\t') {
+                fields.add(decode(fieldStart, i));
+                fieldStart = i + 1;
+            }
+        }
+        int size = fields.size();
+        while (size > 0 && fields.get(size - 1).isEmpty()) {
+            size--;
+        }
+        return fields.subList(0, size).toArray(new String[0]);
+    }
+
+    /*
+     * Advance to the next data row. Label offsets and values are overwritten,
+     * so anything the caller needs from the previous row must be copied first.
+     * Returns false at end of input.
+     */
+    public boolean next() throws IOException {
+        if (!readLine()) {
+            return false;
+        }
+
+        ByteBuffer bytes = buffer;
+        int fieldStart = lineStart;
+        int column = 0;
+        valueCount = 0;
+        for (int i = lineStart; i <= lineEnd; i++) {
+            if (i == lineEnd || bytes.get(i) == '\t') {
+                if (column < labelColumns) {
+                    labelStarts[column] = fieldStart;
+                    labelEnds[column] = i;
+                } else {
+                    if (valueCount == values.length) {
+                        values = Arrays.copyOf(values, Math.max(16, values.length * 2));
+                    }
+                    values[valueCount++] = parseDouble(bytes, fieldStart, i);
+                }
+                column++;
+                fieldStart = i + 1;
+            }
+        }
+
+        if (column < labelColumns) {
+            throw new IOException("Line " + lineNumber + " has " + column + " fields but " + labelColumns + " label columns were expected.");
+        }
+        return true;
+    }
+
+    /*
+     * Parsed expression values for the current row. Only the first
+     * valueCount() entries belong to the row; the array is reused.
+     */
+    public double[] values() {
+        return values;
+    }
+
+    public int valueCount() {
+        return valueCount;
+    }
+
+    /*
+     * 1-based line number of the current row (the header is line 1).
+     */
+    public long lineNumber() {
+        return lineNumber;
+    }
+
+    /*
+     * Number of source bytes consumed so far, i.e. the offset of the first
+     * byte after the current row's line terminator.
+     */
+    public long offset() {
+        return bufferOffset + position;
+    }
+
+    /*
+     * Time spent waiting for the source so far: stream reads (including
+     * inflating gzip input) and mapping windows. Page faults on mapped
+     * windows happen while parsing and are not included.
+     */
+    public long readNanos() {
+        return readNanos;
+    }
+
+    /*
+     * Decode label column i of the current row (0 = first column).
+     */
+    public String label(int i) {
+        return decode(labelStarts[i], labelEnds[i]);
+    }
+
+    /*
+     * Gene key for the current row: the first column, or "col0|col1" for
+     * two-column (isoform) files.
+     */
+    public String geneName() {
+        if (labelColumns == 2) {
+            return label(0) + "|" + label(1);
+        }
+        return label(0);
+    }
+
+    /*
+     * True if geneName() is the String whose bytes in the parser's charset
+     * are key. Compares the label bytes in place, without decoding them.
+     */
+    public boolean geneNameEquals(byte[] key) {
+        int length0 = labelEnds[0] - labelStarts[0];
+        if (labelColumns != 2) {
+            return key.length == length0 && bytesEqual(labelStarts[0], key, 0, length0);
+        }
+        int length1 = labelEnds[1] - labelStarts[1];
+        return key.length == length0 + 1 + length1 && key[length0] == '|' && bytesEqual(labelStarts[0], key, 0, length0)
+                && bytesEqual(labelStarts[1], key, length0 + 1, length1);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (in != null) {
+            in.close();
+        }
+        if (channel != null && ownsChannel) {
+            channel.close();
+        }
+    }
+
+    private boolean bytesEqual(int start, byte[] key, int keyStart, int length) {
+        for (int i = 0; i < length; i++) {
+            if (buffer.get(start + i) != key[keyStart + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String decode(int start, int end) {
+        if (buffer.hasArray()) {
+            return new String(buffer.array(), buffer.arrayOffset() + start, end - start, charset);
+        }
+        byte[] bytes = new byte[end - start];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buffer.get(start + i);
+        }
+        return new String(bytes, charset);
+    }
+
+    /*
+     * Locate the next line in the buffer, refilling (and growing) the buffer
+     * as needed. Sets lineStart/lineEnd, excluding the line terminator.
+     */
+    private boolean readLine() throws IOException {
+        int scan = position;
+        while (true) {
+            ByteBuffer bytes = buffer;
+            for (int i = scan; i < limit; i++) {
+                if (bytes.get(i) == '\n') {
+                    setLine(position, i);
+                    position = i + 1;
+                    return true;
+                }
+            }
+            if (endOfStream) {
+                if (position < limit) {
+                    setLine(position, limit);
+                    position = limit;
+                    return true;
+                }
+                return false;
+            }
+            scan = limit - position;
+            if (channel != null) {
+                remap();
+            } else {
+                fill();
+            }
+            scan += position;
+        }
+    }
+
+    private void setLine(int start, int end) {
+        if (end > start && buffer.get(end - 1) == '\r') {
+            end--;
+        }
+        lineStart = start;
+        lineEnd = end;
+        lineNumber++;
+    }
+
+    /*
+     * Stream source: move the unread tail to the front of the buffer and read
+     * more bytes, doubling the buffer if a single line does not fit.
+     */
+    private void fill() throws IOException {
+        int remaining = limit - position;
+        bufferOffset += position;
+        byte[] array = buffer.array();
+        if (position > 0) {
+            System.arraycopy(array, position, array, 0, remaining);
+        } else if (remaining == array.length) {
+            array = Arrays.copyOf(array, array.length * 2);
+            buffer = ByteBuffer.wrap(array);
+        }
+        position = 0;
+        limit = remaining;
+        long readStart = System.nanoTime();
+        int read = in.read(array, limit, array.length - limit);
+        readNanos += System.nanoTime() - readStart;
+        if (read < 0) {
+            endOfStream = true;
+        } else {
+            limit += read;
+        }
+    }
+
+    /*
+     * Mapped source: map the next window starting at the first unread byte.
+     * The window is doubled if the unread tail (a partial line) already fills
+     * the current one.
+     */
+    private void remap() throws IOException {
+        long start = bufferOffset + position;
+        long available = channelEnd - start;
+        int remaining = limit - position;
+        long size = Math.min(MAPPED_WINDOW_SIZE, available);
+        if (remaining > 0 && remaining >= size && size < available) {
+            size = Math.min(Math.min(2L * remaining, Integer.MAX_VALUE - 8), available);
+        }
+
+        long readStart = System.nanoTime();
+        buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+        readNanos += System.nanoTime() - readStart;
+        bufferOffset = start;
+        position = 0;
+        limit = (int) size;
+        if (start + size >= channelEnd) {
+            endOfStream = true;
+        }
+    }
+
+    /*
+     * Parse a decimal number from bytes [start, end) of buffer (absolute
+     * indices; the buffer's position is not used).
+     *
+     * Plain integers and decimals such as 0, 1.333333 and 2.000001 are parsed
+     * without allocating: the digits are collected into a long mantissa and
+     * divided by an exact power of ten, which gives the same correctly rounded
+     * double as Double.parseDouble(). Anything else (exponents, NaN, very long
+     * mantissas) falls back to Double.parseDouble().
+     */
+    public static double parseDouble(ByteBuffer buffer, int start, int end) {
+        int i = start;
+        boolean negative = false;
+        if (i < end && (buffer.get(i) == '-' || buffer.get(i) == '+')) {
+            negative = buffer.get(i) == '-';
+            i++;
+        }
+
+        long mantissa = 0;
+        int digits = 0;         // Significant digits collected into mantissa
+        int fractionDigits = 0;
+        boolean sawDigit = false;
+        boolean sawPoint = false;
+        for (; i < end; i++) {
+            int c = buffer.get(i);
+            if (c >= '0' && c <= '9') {
+                sawDigit = true;
+                if (mantissa != 0 || c != '0') {
+                    if (++digits > 16) {
+                        return parseDoubleSlow(buffer, start, end);
+                    }
+                }
+                mantissa = mantissa * 10 + (c - '0');
+                if (sawPoint) {
+                    fractionDigits++;
+                }
+            } else if (c == '.' && !sawPoint) {
+                sawPoint = true;
+            } else {
+                return parseDoubleSlow(buffer, start, end);
+            }
+        }
+
+        if (!sawDigit || mantissa > MAX_EXACT_MANTISSA || fractionDigits >= POWERS_OF_TEN.length) {
+            return parseDoubleSlow(buffer, start, end);
+        }
+
+        // Fast path for integers
+        double value = fractionDigits == 0 ? (double) mantissa : mantissa / POWERS_OF_TEN[fractionDigits];
+        return negative ? -value : value;
+    }
+
+    private static double parseDoubleSlow(ByteBuffer buffer, int start, int end) {
+        byte[] bytes = new byte[end - start];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buffer.get(start + i);
+        }
+        return Double.parseDouble(new String(bytes, StandardCharsets.US_ASCII));
+    }
+}
@@ -0,0 +1,109 @@
+// -*- coding: utf-8 -*-
+package ebbertLab.expressionMatrixProcessor;
+
+import java.io.*;
+import java.util.*;
+
+/*
+ * Synthetic expression matrices for the benchmarks, generated in memory by
+ * SyntheticMatrixGenerator from a fixed seed so every run measures the same
+ * data: sparse, negative-binomial-like counts with some of the fractional
+ * values the real matrices contain (1.333333, 0.5, 2.000001), low-depth cells
+ * and rare genes.
+ */
+final class BenchmarkMatrices {
+
+    static final long SEED = 20251016L;
+
+    private BenchmarkMatrices() {
+    }
+
+    /*
+     * Tab-delimited matrix text with a header, as read from RawData.
+     */
+    static byte[] text(int genes, int cells, double density, boolean twoColumnHeader) {
+        SyntheticMatrixGenerator.Settings settings = new SyntheticMatrixGenerator.Settings();
+        settings.genes = genes;
+        settings.cells = cells;
+        settings.density = density;
+        settings.twoColumnHeader = twoColumnHeader;
+        settings.seed = SEED;
+        SyntheticMatrixGenerator generator = new SyntheticMatrixGenerator(settings);
+
+        ByteArrayOutputStream text = new ByteArrayOutputStream();
+        try (MatrixTextWriter writer = new MatrixTextWriter(text)) {
+            generator.writeSample(writer, "Sample1", 0, generator.geneOrder(0, 1, null));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return text.toByteArray();
+    }
+
+    /*
+     * The same matrix as rows of dense values.
+     */
+    static double[][] dense(int genes, int cells, double density) {
+        double[][] rows = new double[genes][];
+        try (TabDelimitedParser parser = new TabDelimitedParser(new ByteArrayInputStream(text(genes, cells, density, false)), 1)) {
+            parser.readHeader();
+            for (int g = 0; parser.next(); g++) {
+                rows[g] = Arrays.copyOf(parser.values(), cells);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return rows;
+    }
+
+    /*
+     * The same matrix in sparse form, rounded to two decimals like a filtered
+     * matrix.
+     */
+    static SparseMatrix sparse(int genes, int cells, double density) {
+        SparseMatrix.Builder builder = new SparseMatrix.Builder(cells);
+        int[] indices = new int[cells];
+        double[] values = new double[cells];
+        for (double[] row : dense(genes, cells, density)) {
+            int size = 0;
+            for (int c = 0; c < cells; c++) {
+                double value = Math.round(row[c] * 100.0) / 100.0;
+                if (value != 0.0) {
+                    indices[size] = c;
+                    values[size] = value;
+                    size++;
+                }
+            }
+            builder.addRow(indices, values, size);
+        }
+        return builder.build();
+    }
+
+    /*
+     * Gene key as GeneIndex sees it: the gene ID, or "transcript|gene".
+     */
+    static String geneKey(int gene, boolean twoColumnHeader) {
+        return geneLabels(gene, twoColumnHeader).replace('\t', '|');
+    }
+
+    private static String geneLabels(int gene, boolean twoColumnHeader) {
+        String geneID = String.format("ENSG%011d", gene / 3);
+        return twoColumnHeader ? String.format("ENST%011d", gene) + "\t" + geneID : String.format("ENSG%011d", gene);
+    }
+
+    /*
+     * Temporary directory for scratch files, removed by deleteDirectory().
+     */
+    static File tempDirectory() throws IOException {
+        return java.nio.file.Files.createTempDirectory("emp-bench").toFile();
+    }
+
+    static void deleteDirectory(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+}
@@ -0,0 +1,80 @@
+// -*- coding: utf-8 -*-
+package ebbertLab.expressionMatrixProcessor;
+
+import java.io.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/*
+ * Rounding values to two decimals and formatting them for the filtered and
+ * transposed matrices. formatValue is the String.format() path the processor
+ * used before MatrixTextWriter, kept as the reference; filteredRows is the
+ * whole Phase 1 second-pass row (rounding, formatting and counting
+ * expressing cells).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FormatBenchmark {
+
+    @Param("2000")
+    int genes;
+
+    @Param("1000")
+    int cells;
+
+    @Param("0.1")
+    double density;
+
+    private double[][] rows;
+    private int[] retained;
+
+    @Setup
+    public void setup() {
+        rows = BenchmarkMatrices.dense(genes, cells, density);
+        retained = new int[cells];
+        for (int i = 0; i < cells; i++) {
+            retained[i] = i;
+        }
+    }
+
+    @Benchmark
+    public void writeValues() throws IOException {
+        MatrixTextWriter writer = new MatrixTextWriter(OutputStream.nullOutputStream());
+        for (double[] row : rows) {
+            for (double value : row) {
+                writer.writeTab();
+                writer.writeCenti(Math.round(value * 100.0));
+            }
+            writer.newLine();
+        }
+        writer.close();
+    }
+
+    @Benchmark
+    public void formatValue() throws IOException {
+        BufferedWriter writer = new BufferedWriter(Writer.nullWriter());
+        for (double[] row : rows) {
+            for (double value : row) {
+                writer.write("\t" + ExpressionMatrixProcessor.formatValue(Math.round(value * 100.0) / 100.0));
+            }
+            writer.newLine();
+        }
+        writer.close();
+    }
+
+    @Benchmark
+    public long filteredRows() throws IOException {
+        MatrixTextWriter writer = new MatrixTextWriter(OutputStream.nullOutputStream());
+        long expressed = 0;
+        for (int g = 0; g < rows.length; g++) {
+            expressed += ExpressionMatrixProcessor.writeFilteredRow(writer, "GENE", null, rows[g], retained);
+        }
+        writer.close();
+        return expressed;
+    }
+}
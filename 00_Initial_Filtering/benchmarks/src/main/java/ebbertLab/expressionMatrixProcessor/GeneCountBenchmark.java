@@ -0,0 +1,89 @@
+// -*- coding: utf-8 -*-
+package ebbertLab.expressionMatrixProcessor;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/*
+ * Gene-count accumulation across samples: resolving each sample's gene keys
+ * (the first sample interns them, later ones match the reference order) and
+ * summing the cells expressing each gene, as Phase 1 and its merge do.
+ * hashMapCounts is the Map<String, Integer> accumulation the processor used
+ * before GeneIndex, kept as the reference.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GeneCountBenchmark {
+
+    @Param("60000")
+    int genes;
+
+    @Param("4")
+    int samples;
+
+    @Param("true")
+    boolean twoColumnHeader;
+
+    private String[][] keys;    // Per sample, distinct String instances like the parser creates
+    private int[][] counts;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(BenchmarkMatrices.SEED);
+        keys = new String[samples][genes];
+        counts = new int[samples][genes];
+        for (int s = 0; s < samples; s++) {
+            for (int g = 0; g < genes; g++) {
+                keys[s][g] = new String(BenchmarkMatrices.geneKey(g, twoColumnHeader));
+                counts[s][g] = random.nextInt(50);
+            }
+        }
+    }
+
+    @Benchmark
+    public int[] geneIndexCounts() {
+        GeneIndex geneIndex = new GeneIndex();
+        List<int[]> geneOrders = new ArrayList<>();
+        for (int s = 0; s < samples; s++) {
+            ExpressionMatrixProcessor.GeneCounts sample = new ExpressionMatrixProcessor.GeneCounts();
+            GeneIndex.Keys sampleKeys = geneIndex.keys();
+            for (int g = 0; g < genes; g++) {
+                sample.add(sampleKeys.id(keys[s][g], null, g), counts[s][g]);
+            }
+            sampleKeys.finish(sample.genes);
+            int[] geneOrder = Arrays.copyOf(sample.genes, sample.size);
+            geneIndex.offerReference(geneOrder);
+            geneOrders.add(geneOrder);
+        }
+
+        int[] globalCounts = new int[geneIndex.size()];
+        for (int s = 0; s < samples; s++) {
+            int[] geneOrder = geneOrders.get(s);
+            for (int g = 0; g < geneOrder.length; g++) {
+                globalCounts[geneOrder[g]] += counts[s][g];
+            }
+        }
+        return globalCounts;
+    }
+
+    @Benchmark
+    public Map<String, Integer> hashMapCounts() {
+        Map<String, Integer> globalCounts = new LinkedHashMap<>();
+        for (int s = 0; s < samples; s++) {
+            Map<String, Integer> sample = new LinkedHashMap<>();
+            for (int g = 0; g < genes; g++) {
+                sample.put(keys[s][g], counts[s][g]);
+            }
+            for (Map.Entry<String, Integer> entry : sample.entrySet()) {
+                globalCounts.merge(entry.getKey(), entry.getValue(), Integer::sum);
+            }
+        }
+        return globalCounts;
+    }
+}
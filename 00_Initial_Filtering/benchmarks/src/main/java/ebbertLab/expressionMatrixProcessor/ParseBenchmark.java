@@ -0,0 +1,94 @@
+// -*- coding: utf-8 -*-
+package ebbertLab.expressionMatrixProcessor;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/*
+ * Line parsing and the Phase 1 column-sum pass over an in-memory matrix.
+ * splitLines is the line.split("\t") + Double.parseDouble() loop the
+ * processor used before TabDelimitedParser, kept as the reference.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParseBenchmark {
+
+    @Param("2000")
+    int genes;
+
+    @Param("1000")
+    int cells;
+
+    @Param("0.1")
+    double density;
+
+    @Param("false")
+    boolean twoColumnHeader;
+
+    private byte[] matrix;
+    private int labelColumns;
+
+    @Setup
+    public void setup() {
+        matrix = BenchmarkMatrices.text(genes, cells, density, twoColumnHeader);
+        labelColumns = twoColumnHeader ? 2 : 1;
+    }
+
+    @Benchmark
+    public void parseRows(Blackhole blackhole) throws IOException {
+        TabDelimitedParser parser = new TabDelimitedParser(new ByteArrayInputStream(matrix), labelColumns);
+        parser.readHeader();
+        while (parser.next()) {
+            blackhole.consume(parser.values());
+        }
+    }
+
+    @Benchmark
+    public double[] columnSums() throws IOException {
+        TabDelimitedParser parser = new TabDelimitedParser(new ByteArrayInputStream(matrix), labelColumns);
+        parser.readHeader();
+        double[] sums = new double[cells];
+        while (parser.next()) {
+            double[] values = parser.values();
+            for (int i = 0; i < cells; i++) {
+                sums[i] += values[i];
+            }
+        }
+        return sums;
+    }
+
+    @Benchmark
+    public double[] columnSumsSparseStore() throws IOException {
+        TabDelimitedParser parser = new TabDelimitedParser(new ByteArrayInputStream(matrix), labelColumns);
+        parser.readHeader();
+        try (SparseRowStore store = new SparseRowStore(labelColumns, cells, Long.MAX_VALUE, new File("."), "bench_")) {
+            while (parser.next()) {
+                store.addRow(parser);
+            }
+            return store.columnSums();
+        }
+    }
+
+    @Benchmark
+    public double[] splitLines() throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(matrix), StandardCharsets.US_ASCII));
+        reader.readLine();
+        double[] sums = new double[cells];
+        String line;
+        while ((line = reader.readLine()) != null) {
+            String[] fields = line.split("\t");
+            for (int i = 0; i < cells; i++) {
+                sums[i] += Double.parseDouble(fields[i + labelColumns]);
+            }
+        }
+        return sums;
+    }
+}
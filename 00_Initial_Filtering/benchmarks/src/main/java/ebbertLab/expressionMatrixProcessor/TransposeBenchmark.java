@@ -0,0 +1,89 @@
+// -*- coding: utf-8 -*-
+package ebbertLab.expressionMatrixProcessor;
+
+import java.io.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/*
+ * The Phase 3 transpose: buffering gene rows in the BlockedTransposer and
+ * reading them back cell by cell, in memory or through scratch tiles
+ * (memoryBudgetMB small enough to spill), and the CSR -> CSC transpose used
+ * when a single-pass run keeps the filtered matrix in memory.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransposeBenchmark {
+
+    @Param("2000")
+    int genes;
+
+    @Param("1000")
+    int cells;
+
+    @Param("0.1")
+    double density;
+
+    private int[] hundredths;       // Row-major, as in the Phase 3 batches
+    private SparseMatrix genesByCell;
+
+    /*
+     * Transposer settings, only varied for blockedTranspose.
+     */
+    @State(Scope.Benchmark)
+    public static class Tiles {
+
+        @Param({"1024", "1"})
+        int memoryBudgetMB;
+
+        File scratchDir;
+
+        @Setup
+        public void setup() throws IOException {
+            scratchDir = BenchmarkMatrices.tempDirectory();
+        }
+
+        @TearDown
+        public void tearDown() {
+            BenchmarkMatrices.deleteDirectory(scratchDir);
+        }
+    }
+
+    @Setup
+    public void setup() {
+        double[][] rows = BenchmarkMatrices.dense(genes, cells, density);
+        hundredths = new int[genes * cells];
+        for (int r = 0; r < genes; r++) {
+            for (int c = 0; c < cells; c++) {
+                hundredths[r * cells + c] = (int) Math.round(rows[r][c] * 100.0);
+            }
+        }
+        genesByCell = BenchmarkMatrices.sparse(genes, cells, density);
+    }
+
+    @Benchmark
+    public long blockedTranspose(Tiles tiles) throws IOException {
+        long[] checksum = new long[1];
+        try (BlockedTransposer transposer = new BlockedTransposer(cells, tiles.memoryBudgetMB * 1024L * 1024L, tiles.scratchDir, "bench_")) {
+            for (int r = 0; r < genes; r++) {
+                transposer.addRow(hundredths, r * cells);
+            }
+            transposer.transpose((cell, hundredths, offset, count) -> {
+                for (int i = offset; i < offset + count; i++) {
+                    checksum[0] += hundredths[i];
+                }
+            }, "");
+        }
+        return checksum[0];
+    }
+
+    @Benchmark
+    public SparseMatrix sparseTranspose() {
+        return genesByCell.transpose();
+    }
+}
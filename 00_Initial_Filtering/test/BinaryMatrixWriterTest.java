@@ -0,0 +1,133 @@
+// -*- coding: utf-8 -*-
+// package ebbertLab.expressionMatrixProcessor;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.*;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/*
+ * Matrices written by BinaryMatrixWriter must read back unchanged through
+ * BinaryMatrixReader, from both ways of adding cells, across chunk
+ * boundaries, and with chunks that need long values.
+ */
+public class BinaryMatrixWriterTest {
+
+    private static final int CELLS = 37;
+    private static final int GENES = 11;
+    private static final int CHUNK_CELLS = 8;       // Several chunks, the last one short
+
+    @TempDir
+    Path directory;
+
+    /*
+     * Hundredths of cell c, gene g: mostly zeros, some negative, and a value
+     * too large for an int in cell 20 only.
+     */
+    private static long value(int c, int g) {
+        if ((c + g) % 3 != 0) {
+            return 0;
+        }
+        if (c == 20 && g == 4) {
+            return 700_000_000_000L;
+        }
+        return (c % 5 == 0 ? -1 : 1) * (c * 131L + g * 7L + 1);
+    }
+
+    private static String[] ids(String prefix, int count) {
+        String[] ids = new String[count];
+        for (int i = 0; i < count; i++) {
+            ids[i] = prefix + i;
+        }
+        return ids;
+    }
+
+    private static void assertReadsBack(File file) throws IOException {
+        try (BinaryMatrixReader reader = new BinaryMatrixReader(file)) {
+            assertEquals(CELLS, reader.cellCount());
+            assertEquals(GENES, reader.geneCount());
+            assertEquals((CELLS + CHUNK_CELLS - 1) / CHUNK_CELLS, reader.chunkCount());
+            assertArrayEquals(ids("cell", CELLS), reader.cellIDs());
+            assertArrayEquals(ids("gene|", GENES), reader.geneIDs());
+
+            long nonzeros = 0;
+            SparseMatrix cells = reader.readCells(0, CELLS);
+            for (int c = 0; c < CELLS; c++) {
+                double[] dense = new double[GENES];
+                for (int i = cells.rowStart(c); i < cells.rowEnd(c); i++) {
+                    dense[cells.columnIndices()[i]] = cells.values()[i];
+                }
+                for (int g = 0; g < GENES; g++) {
+                    assertEquals(value(c, g) / 100.0, dense[g], "cell " + c + ", gene " + g);
+                    nonzeros += value(c, g) != 0 ? 1 : 0;
+                }
+            }
+            assertEquals(nonzeros, reader.nonzeros());
+
+            SparseMatrix range = reader.readCells(6, 19);      // Spans three chunks
+            assertEquals(13, range.rows());
+            for (int c = 6; c < 19; c++) {
+                assertEquals(cells.rowEnd(c) - cells.rowStart(c), range.rowEnd(c - 6) - range.rowStart(c - 6), "cell " + c);
+            }
+
+            for (int g = 0; g < GENES; g++) {
+                double[] gene = reader.readGene(g);
+                for (int c = 0; c < CELLS; c++) {
+                    assertEquals(value(c, g) / 100.0, gene[c], "cell " + c + ", gene " + g);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void cellsFromTransposerReadBack() throws IOException {
+        File file = directory.resolve("cells.bin").toFile();
+        try (BinaryMatrixWriter writer = new BinaryMatrixWriter(file, ids("cell", CELLS), ids("gene|", GENES), CHUNK_CELLS)) {
+            long[] buffer = new long[GENES + 2];
+            for (int c = 0; c < CELLS; c++) {
+                for (int g = 0; g < GENES; g++) {
+                    buffer[2 + g] = value(c, g);
+                }
+                writer.addCell(c, buffer, 2, GENES);
+            }
+        }
+        assertReadsBack(file);
+    }
+
+    @Test
+    public void sparseRowsReadBack() throws IOException {
+        SparseMatrix.Builder builder = new SparseMatrix.Builder(GENES);
+        for (int c = 0; c < CELLS; c++) {
+            int[] indices = new int[GENES];
+            double[] values = new double[GENES];
+            int size = 0;
+            for (int g = 0; g < GENES; g++) {
+                if (value(c, g) != 0) {
+                    indices[size] = g;
+                    values[size++] = value(c, g) / 100.0;
+                }
+            }
+            builder.addRow(indices, values, size);
+        }
+        File file = directory.resolve("rows.bin").toFile();
+        try (BinaryMatrixWriter writer = new BinaryMatrixWriter(file, ids("cell", CELLS), ids("gene|", GENES), CHUNK_CELLS)) {
+            writer.addRows(builder.build());
+        }
+        assertReadsBack(file);
+    }
+
+    @Test
+    public void otherVersionIsRejected() throws IOException {
+        File file = directory.resolve("old.bin").toFile();
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file))) {
+            out.writeInt(BinaryMatrixWriter.MAGIC);
+            out.writeInt(BinaryMatrixWriter.VERSION + 1);
+            out.write(new byte[64]);
+        }
+        IOException thrown = assertThrows(IOException.class, () -> new BinaryMatrixReader(file));
+        assertTrue(thrown.getMessage().contains("version"), thrown.getMessage());
+    }
+}
@@ -0,0 +1,129 @@
+// -*- coding: utf-8 -*-
+// package ebbertLab.expressionMatrixProcessor;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.*;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/*
+ * Rows go in through the addRow() overloads Phase 3 uses, and every column
+ * that comes out must hold the added rows' values in order. The row counts
+ * are chosen to push the tile past its initial 1024-row allocation, and past
+ * the tile size into the scratch file.
+ */
+public class BlockedTransposerTest {
+
+    private static final int COLUMNS = 5;
+    private static final int OFFSET = 3;    // Rows start part way into the caller's buffer, as in Phase 3
+
+    @TempDir
+    Path scratchDir;
+
+    private static long value(int row, int column) {
+        return (row % 3 == 0) ? 0 : row * 7L - column * 3L;
+    }
+
+    /*
+     * Add rows through addRow(int[], int), reusing one buffer the way the
+     * Phase 3 batches do.
+     */
+    private static void addIntRows(BlockedTransposer transposer, int from, int to) throws IOException {
+        int[] buffer = new int[OFFSET + COLUMNS];
+        for (int r = from; r < to; r++) {
+            for (int c = 0; c < COLUMNS; c++) {
+                buffer[OFFSET + c] = (int) value(r, c);
+            }
+            transposer.addRow(buffer, OFFSET);
+        }
+    }
+
+    private static long[][] transpose(BlockedTransposer transposer, int rows) throws IOException {
+        long[][] cells = new long[COLUMNS][];
+        transposer.transpose((column, hundredths, offset, count) -> {
+            assertEquals(rows, count);
+            assertNull(cells[column], "column " + column + " passed twice");
+            long[] cell = new long[count];
+            System.arraycopy(hundredths, offset, cell, 0, count);
+            cells[column] = cell;
+        }, "test");
+        return cells;
+    }
+
+    private static void assertTransposed(long[][] cells, int rows, long bigValue, int bigRow) {
+        for (int c = 0; c < COLUMNS; c++) {
+            assertNotNull(cells[c], "column " + c + " missing");
+            for (int r = 0; r < rows; r++) {
+                long expected = r == bigRow ? bigValue + c : value(r, c);
+                assertEquals(expected, cells[c][r], "row " + r + ", column " + c);
+            }
+        }
+    }
+
+    @Test
+    public void intRowsGrowTileInMemory() throws IOException {
+        int rows = 3000;
+        try (BlockedTransposer transposer = new BlockedTransposer(COLUMNS, 1L << 30, scratchDir.toFile(), "test_")) {
+            addIntRows(transposer, 0, rows);
+            assertFalse(transposer.isExternal());
+            assertTransposed(transpose(transposer, rows), rows, 0, -1);
+        }
+    }
+
+    @Test
+    public void intRowsSpillToScratchTiles() throws IOException {
+        int rows = 3000;
+        long budget = 2L * Integer.BYTES * COLUMNS * 700;      // Tiles of 700 rows
+        try (BlockedTransposer transposer = new BlockedTransposer(COLUMNS, budget, scratchDir.toFile(), "test_")) {
+            addIntRows(transposer, 0, rows);
+            assertTrue(transposer.isExternal());
+            assertTransposed(transpose(transposer, rows), rows, 0, -1);
+        }
+    }
+
+    /*
+     * A value too large for an int part way through widens the tile; the int
+     * rows before and after it must come out unchanged.
+     */
+    @Test
+    public void wideRowWidensTile() throws IOException {
+        int rows = 2500;
+        int bigRow = 1500;
+        long big = 500_000_000_000L;
+        for (long budget : new long[] {1L << 30, 2L * Integer.BYTES * COLUMNS * 700}) {
+            try (BlockedTransposer transposer = new BlockedTransposer(COLUMNS, budget, scratchDir.toFile(), "test_")) {
+                addIntRows(transposer, 0, bigRow);
+                long[] wide = new long[OFFSET + COLUMNS];
+                for (int c = 0; c < COLUMNS; c++) {
+                    wide[OFFSET + c] = big + c;
+                }
+                transposer.addRow(wide, OFFSET);
+                addIntRows(transposer, bigRow + 1, rows);
+                assertTransposed(transpose(transposer, rows), rows, big, bigRow);
+            }
+        }
+    }
+
+    /*
+     * Once tiles spill, the tile with its staging buffer, and the merge block
+     * with one cell's values, must each fit in the budget (unless even a
+     * 16-row tile does not).
+     */
+    @Test
+    public void spillingPeakStaysWithinBudget() {
+        for (long budgetMB : new long[] {1, 64, 256, 1024}) {
+            long budget = budgetMB << 20;
+            for (int cells : new int[] {500, 4000, 20000}) {
+                if (2L * Integer.BYTES * cells * 16 > budget) {
+                    continue;
+                }
+                long rows = 4L * BlockedTransposer.tileRows(cells, budget);
+                long peak = BlockedTransposer.estimatedPeakBytes(rows, cells, budget);
+                assertTrue(peak <= budget, budgetMB + " MB budget, " + cells + " cells: peak " + peak);
+            }
+        }
+    }
+}
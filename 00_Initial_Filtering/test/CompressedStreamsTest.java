@@ -0,0 +1,117 @@
+// -*- coding: utf-8 -*-
+// package ebbertLab.expressionMatrixProcessor;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.*;
+import java.time.Duration;
+import java.util.*;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.jupiter.api.Test;
+
+/*
+ * The background threads of CompressedStreams: data must pass through
+ * unchanged, and whatever the thread fails with must reach the caller as an
+ * IOException instead of leaving it waiting forever.
+ */
+public class CompressedStreamsTest {
+
+    private static final Duration TIMEOUT = Duration.ofSeconds(10);
+
+    private static byte[] data(int length) {
+        byte[] bytes = new byte[length];
+        new Random(7).nextBytes(bytes);
+        return bytes;
+    }
+
+    /*
+     * Source that returns limit bytes of zeros and then throws failure.
+     */
+    private static InputStream failingSource(int limit, RuntimeException failure) {
+        return new InputStream() {
+            private int position;
+
+            @Override
+            public int read() {
+                if (position == limit) {
+                    throw failure;
+                }
+                position++;
+                return 0;
+            }
+        };
+    }
+
+    @Test
+    public void readAheadPassesDataThrough() throws IOException {
+        byte[] expected = data(3 * (1 << 20) + 17);     // Several blocks and a partial one
+        try (InputStream in = new CompressedStreams.ReadAheadInputStream(new ByteArrayInputStream(expected), "test-reader")) {
+            assertArrayEquals(expected, in.readAllBytes());
+        }
+    }
+
+    @Test
+    public void readAheadReportsUncheckedFailure() {
+        IllegalStateException failure = new IllegalStateException("corrupt input");
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            try (InputStream in = new CompressedStreams.ReadAheadInputStream(failingSource(100, failure), "test-reader")) {
+                IOException thrown = assertThrows(IOException.class, in::readAllBytes);
+                assertSame(failure, thrown.getCause());
+            }
+        });
+    }
+
+    @Test
+    public void asyncGzipPassesDataThrough() throws IOException {
+        byte[] expected = data(3 * (1 << 20) + 17);
+        ByteArrayOutputStream target = new ByteArrayOutputStream();
+        try (OutputStream out = new CompressedStreams.AsyncGzipOutputStream(target, "test-writer")) {
+            out.write(expected);
+        }
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(target.toByteArray()))) {
+            assertArrayEquals(expected, in.readAllBytes());
+        }
+    }
+
+    @Test
+    public void asyncGzipReportsUncheckedFailure() {
+        IllegalStateException failure = new IllegalStateException("disk gone");
+        OutputStream target = new OutputStream() {
+            @Override
+            public void write(int b) {
+                throw failure;
+            }
+        };
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            OutputStream out = new CompressedStreams.AsyncGzipOutputStream(target, "test-writer");
+            IOException thrown = assertThrows(IOException.class, () -> {
+                for (int i = 0; i < 32; i++) {
+                    out.write(data(1 << 20));
+                }
+                out.close();
+            });
+            assertSame(failure, thrown.getCause());
+        });
+    }
+
+    /*
+     * The gzip trailer is written when the stream is closed, after the
+     * compressing thread has taken the last block.
+     */
+    @Test
+    public void asyncGzipReportsFailureOnClose() {
+        OutputStream target = new ByteArrayOutputStream() {
+            @Override
+            public void close() throws IOException {
+                throw new IOException("close failed");
+            }
+        };
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            OutputStream out = new CompressedStreams.AsyncGzipOutputStream(target, "test-writer");
+            out.write(data(1000));
+            IOException thrown = assertThrows(IOException.class, out::close);
+            assertEquals("close failed", thrown.getMessage());
+        });
+    }
+}
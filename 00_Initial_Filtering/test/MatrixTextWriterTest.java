@@ -0,0 +1,112 @@
+// -*- coding: utf-8 -*-
+// package ebbertLab.expressionMatrixProcessor;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.*;
+import java.util.*;
+
+import org.junit.jupiter.api.Test;
+
+/*
+ * writeCenti() must print exactly what formatValue() prints for
+ * hundredths / 100.0, on both sides of MAX_EXACT_CENTI where it switches
+ * from its own digits to formatValue(), and writeCentiRoot() must not
+ * depend on the default locale.
+ */
+public class MatrixTextWriterTest {
+
+    private static String written(long hundredths) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (MatrixTextWriter writer = new MatrixTextWriter(bytes)) {
+            writer.writeCenti(hundredths);
+        }
+        return bytes.toString();
+    }
+
+    private static void assertSameText(long hundredths) throws IOException {
+        assertEquals(ExpressionMatrixProcessor.formatValue(hundredths / 100.0), written(hundredths), "hundredths " + hundredths);
+    }
+
+    @Test
+    public void smallValuesMatchFormatValue() throws IOException {
+        for (long h = -20_000; h <= 20_000; h++) {
+            assertSameText(h);
+        }
+    }
+
+    /*
+     * Whole numbers, the last hundredth before them and the first after,
+     * with one to eighteen digits.
+     */
+    @Test
+    public void roundingBoundariesMatchFormatValue() throws IOException {
+        for (long whole = 1; whole < MatrixTextWriter.MAX_EXACT_CENTI / 100; whole *= 10) {
+            for (long h : new long[] {whole * 100 - 1, whole * 100, whole * 100 + 1, whole * 100 + 5, whole * 100 + 50, whole * 100 + 99}) {
+                assertSameText(h);
+                assertSameText(-h);
+            }
+        }
+    }
+
+    @Test
+    public void exactLimitMatchesFormatValue() throws IOException {
+        long limit = MatrixTextWriter.MAX_EXACT_CENTI;
+        for (long h = limit - 300; h <= limit + 300; h++) {
+            assertSameText(h);
+            assertSameText(-h);
+        }
+    }
+
+    @Test
+    public void randomValuesMatchFormatValue() throws IOException {
+        Random random = new Random(11);
+        for (int i = 0; i < 100_000; i++) {
+            long h = random.nextLong() % MatrixTextWriter.MAX_EXACT_CENTI;
+            assertSameText(h);
+        }
+    }
+
+    /*
+     * Values are buffered across many calls; the text must be the same as
+     * formatting each one separately.
+     */
+    @Test
+    public void bufferedRowMatchesFormatValue() throws IOException {
+        StringBuilder expected = new StringBuilder();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (MatrixTextWriter writer = new MatrixTextWriter(bytes, 64)) {
+            for (long h = -5000; h < 5000; h += 7) {
+                writer.writeCenti(h);
+                writer.writeTab();
+                expected.append(ExpressionMatrixProcessor.formatValue(h / 100.0)).append('\t');
+            }
+        }
+        assertEquals(expected.toString(), bytes.toString());
+    }
+
+    /*
+     * Matrix Market entries keep a '.' decimal separator even when the
+     * default locale prints a comma, including above MAX_EXACT_CENTI.
+     */
+    @Test
+    public void rootFormatIgnoresDefaultLocale() throws IOException {
+        Locale saved = Locale.getDefault();
+        Locale.setDefault(Locale.GERMANY);
+        try {
+            long limit = MatrixTextWriter.MAX_EXACT_CENTI;
+            for (long h : new long[] {-1234, -5, 0, 5, 1250, limit - 1, limit + 1, -(limit + 1), limit * 3 + 7}) {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                try (MatrixTextWriter writer = new MatrixTextWriter(bytes)) {
+                    writer.writeCentiRoot(h);
+                }
+                double value = h / 100.0;
+                String expected = value == (long) value ? String.valueOf((long) value) : String.format(Locale.ROOT, "%.2f", value);
+                assertEquals(expected, bytes.toString(), "hundredths " + h);
+                assertFalse(bytes.toString().contains(","), "hundredths " + h);
+            }
+        } finally {
+            Locale.setDefault(saved);
+        }
+    }
+}
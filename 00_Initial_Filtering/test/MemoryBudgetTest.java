@@ -0,0 +1,60 @@
+// -*- coding: utf-8 -*-
+// package ebbertLab.expressionMatrixProcessor;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.*;
+
+import org.junit.jupiter.api.Test;
+
+/*
+ * Shares of running tasks and kept matrices together must never exceed the
+ * budget, whatever order the tasks start, keep and finish in.
+ */
+public class MemoryBudgetTest {
+
+    private static final long TOTAL = 1000;
+
+    @Test
+    public void sharesSplitWhatKeptMatricesLeave() {
+        MemoryBudget budget = new MemoryBudget(TOTAL, 2);
+        long first = budget.acquire();
+        long second = budget.acquire();
+        assertEquals(500, first);
+        assertEquals(500, second);
+        budget.release(first, 300);
+        assertEquals(200, budget.acquire());        // The second task still holds its share
+        budget.release(second, 0);
+        assertEquals(300, budget.keptBytes());
+        budget.releaseKept(300);
+        assertEquals(0, budget.keptBytes());
+    }
+
+    @Test
+    public void sharesAndKeptMatricesStayWithinBudget() {
+        Random random = new Random(19);
+        for (int tasks = 1; tasks <= 4; tasks++) {
+            MemoryBudget budget = new MemoryBudget(TOTAL, tasks);
+            List<Long> running = new ArrayList<>();
+            List<Long> kept = new ArrayList<>();
+            for (int step = 0; step < 10_000; step++) {
+                int action = random.nextInt(3);
+                if (action == 0 && running.size() < tasks) {
+                    running.add(budget.acquire());
+                } else if (action == 1 && !running.isEmpty()) {
+                    long share = running.remove(random.nextInt(running.size()));
+                    long keep = random.nextBoolean() ? random.nextInt((int) share + 1) : 0;
+                    budget.release(share, keep);
+                    if (keep > 0) {
+                        kept.add(keep);
+                    }
+                } else if (action == 2 && !kept.isEmpty()) {
+                    budget.releaseKept(kept.remove(random.nextInt(kept.size())));
+                }
+                long held = running.stream().mapToLong(Long::longValue).sum() + budget.keptBytes();
+                assertTrue(held <= TOTAL, tasks + " tasks, step " + step + ": " + held + " held");
+                assertEquals(kept.stream().mapToLong(Long::longValue).sum(), budget.keptBytes());
+            }
+        }
+    }
+}
@@ -0,0 +1,266 @@
+// -*- coding: utf-8 -*-
+// package ebbertLab.expressionMatrixProcessor;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/*
+ * Checkpoints are only trusted while they match: a Phase 1 checkpoint must
+ * be rejected (not fail the run) once the input, the settings or the
+ * filtered matrix change or the file is cut short, and a Phase 3 checkpoint
+ * once its key or outputs change. reportChanges() must classify samples and
+ * genes against the previous cohort.
+ *
+ * Like the processor, SampleCheckpoint works in the current directory
+ * (target/test-work under Maven); every test removes what it wrote there.
+ */
+public class SampleCheckpointTest {
+
+    private static final String SAMPLE = "ckpt_sample";
+    private static final String[] GENES = {"GeneA", "GeneB", "GeneC"};
+
+    @TempDir
+    Path inputDir;
+
+    private final List<File> written = new ArrayList<>();
+
+    @AfterEach
+    public void removeFiles() {
+        for (File file : written) {
+            file.delete();
+        }
+        SampleCheckpoint.invalidate(SAMPLE);
+        SampleCheckpoint.cohortFile().delete();
+    }
+
+    private File write(File file, String text) throws IOException {
+        Files.write(file.toPath(), text.getBytes(StandardCharsets.US_ASCII));
+        written.add(file);
+        return file;
+    }
+
+    private static ExpressionMatrixProcessor.Options options() {
+        ExpressionMatrixProcessor.Options options = new ExpressionMatrixProcessor.Options();
+        options.cellThreshold = 300;
+        options.checkpoint = true;
+        options.resume = true;
+        return options;
+    }
+
+    /*
+     * A checkpointed Phase 1 result for SAMPLE, with its input, filtered
+     * matrix and removed-cells list on disk.
+     */
+    private ExpressionMatrixProcessor.SampleResult savedResult(ExpressionMatrixProcessor.Options options, GeneIndex geneIndex) throws IOException {
+        ExpressionMatrixProcessor.SampleResult result = new ExpressionMatrixProcessor.SampleResult();
+        result.inputFile = write(inputDir.resolve(SAMPLE + ".txt").toFile(), "Gene\tc1\tc2\tc3\nGeneA\t400\t0\t5\nGeneB\t0\t0\t1\nGeneC\t2\t9\t400\n");
+        result.sampleName = SAMPLE;
+        result.filteredFile = write(new File(SAMPLE + "_filtered.txt"), "Gene\tc1\tc3\nGeneA\t400\t5\nGeneB\t0\t1\nGeneC\t2\t400\n");
+        write(new File("removed_cells_" + SAMPLE + ".txt"), "CellID\tTotalReads\nc2\t9\n");
+        result.columnSums = new double[] {402, 9, 406};
+        result.retainedCells = new int[] {0, 2};
+        result.geneOrder = new int[GENES.length];
+        for (int g = 0; g < GENES.length; g++) {
+            result.geneOrder[g] = geneIndex.intern(GENES[g]);
+        }
+        result.expressedInCells = new int[] {2, 1, 2};
+        SampleCheckpoint.savePhase1(result, options, geneIndex);
+        return result;
+    }
+
+    private static ExpressionMatrixProcessor.SampleResult load(File inputFile, ExpressionMatrixProcessor.Options options) throws IOException {
+        return SampleCheckpoint.loadPhase1(inputFile, options, new GeneIndex(), "");
+    }
+
+    @Test
+    public void phase1RoundTrip() throws IOException {
+        ExpressionMatrixProcessor.Options options = options();
+        ExpressionMatrixProcessor.SampleResult saved = savedResult(options, new GeneIndex());
+        GeneIndex geneIndex = new GeneIndex();
+        ExpressionMatrixProcessor.SampleResult loaded = SampleCheckpoint.loadPhase1(saved.inputFile, options, geneIndex, "");
+        assertNotNull(loaded);
+        assertTrue(loaded.fromCheckpoint);
+        assertEquals(SAMPLE, loaded.sampleName);
+        assertEquals(saved.filteredFile.getName(), loaded.filteredFile.getName());
+        assertArrayEquals(saved.columnSums, loaded.columnSums);
+        assertArrayEquals(saved.retainedCells, loaded.retainedCells);
+        assertArrayEquals(saved.expressedInCells, loaded.expressedInCells);
+        for (int g = 0; g < GENES.length; g++) {
+            assertEquals(GENES[g], geneIndex.name(loaded.geneOrder[g]));
+        }
+    }
+
+    /*
+     * Same size and modification time, different bytes: only the CRC of
+     * the fingerprint tells them apart.
+     */
+    @Test
+    public void changedInputIsStale() throws IOException {
+        ExpressionMatrixProcessor.Options options = options();
+        File input = savedResult(options, new GeneIndex()).inputFile;
+        long modified = input.lastModified();
+        String text = new String(Files.readAllBytes(input.toPath()), StandardCharsets.US_ASCII);
+        Files.write(input.toPath(), text.replace("400\t0\t5", "401\t0\t4").getBytes(StandardCharsets.US_ASCII));
+        assertTrue(input.setLastModified(modified));
+        assertNull(load(input, options));
+    }
+
+    @Test
+    public void changedSettingsAreStale() throws IOException {
+        ExpressionMatrixProcessor.Options options = options();
+        File input = savedResult(options, new GeneIndex()).inputFile;
+
+        options.cellThreshold = 301;
+        assertNull(load(input, options));
+        options.cellThreshold = 300;
+        options.compressOutput = true;
+        assertNull(load(input, options));
+        options.compressOutput = false;
+        assertNotNull(load(input, options));
+    }
+
+    @Test
+    public void changedFilteredMatrixIsStale() throws IOException {
+        ExpressionMatrixProcessor.Options options = options();
+        ExpressionMatrixProcessor.SampleResult saved = savedResult(options, new GeneIndex());
+        Files.write(saved.filteredFile.toPath(), "Gene\tc1\n".getBytes(StandardCharsets.US_ASCII));
+        assertNull(load(saved.inputFile, options));
+    }
+
+    /*
+     * Every possible cut of the checkpoint is rejected, not reported as an
+     * error.
+     */
+    @Test
+    public void truncatedPhase1IsStale() throws IOException {
+        ExpressionMatrixProcessor.Options options = options();
+        File input = savedResult(options, new GeneIndex()).inputFile;
+        File checkpoint = SampleCheckpoint.phase1File(SAMPLE);
+        byte[] bytes = Files.readAllBytes(checkpoint.toPath());
+        for (int length = 0; length < bytes.length; length++) {
+            Files.write(checkpoint.toPath(), Arrays.copyOf(bytes, length));
+            assertNull(load(input, options), "checkpoint cut to " + length + " bytes");
+        }
+        Files.write(checkpoint.toPath(), bytes);
+        assertNotNull(load(input, options));
+    }
+
+    @Test
+    public void phase3DoneOnlyForSameKeyAndOutputs() throws IOException {
+        ExpressionMatrixProcessor.SampleResult result = new ExpressionMatrixProcessor.SampleResult();
+        result.sampleName = SAMPLE;
+        List<File> outputs = Arrays.asList(write(new File(SAMPLE + "_transposed.txt"), "CellID\tGeneA\nc1\t4\n"),
+                write(new File(SAMPLE + "_other.bin"), "binary"));
+        assertFalse(SampleCheckpoint.isPhase3Done(result, "key", outputs));
+
+        SampleCheckpoint.savePhase3(result, "key", outputs);
+        assertTrue(SampleCheckpoint.isPhase3Done(result, "key", outputs));
+        assertFalse(SampleCheckpoint.isPhase3Done(result, "other key", outputs));
+        assertFalse(SampleCheckpoint.isPhase3Done(result, "key", outputs.subList(0, 1)));
+
+        write(outputs.get(1), "binary, but longer");
+        assertFalse(SampleCheckpoint.isPhase3Done(result, "key", outputs));
+        write(outputs.get(1), "binary");
+        assertTrue(SampleCheckpoint.isPhase3Done(result, "key", outputs));
+        outputs.get(0).delete();
+        assertFalse(SampleCheckpoint.isPhase3Done(result, "key", outputs));
+        write(outputs.get(0), "CellID\tGeneA\nc1\t4\n");
+
+        File checkpoint = SampleCheckpoint.phase3File(SAMPLE);
+        byte[] bytes = Files.readAllBytes(checkpoint.toPath());
+        for (int length = 0; length < bytes.length; length++) {
+            Files.write(checkpoint.toPath(), Arrays.copyOf(bytes, length));
+            assertFalse(SampleCheckpoint.isPhase3Done(result, "key", outputs), "checkpoint cut to " + length + " bytes");
+        }
+    }
+
+    private static ExpressionMatrixProcessor.SampleResult sample(String name, boolean fromCheckpoint, GeneIndex geneIndex, String... genes) {
+        ExpressionMatrixProcessor.SampleResult result = new ExpressionMatrixProcessor.SampleResult();
+        result.sampleName = name;
+        result.fromCheckpoint = fromCheckpoint;
+        result.geneOrder = new int[genes.length];
+        for (int g = 0; g < genes.length; g++) {
+            result.geneOrder[g] = geneIndex.intern(genes[g]);
+        }
+        return result;
+    }
+
+    private static String report(SampleCheckpoint.Cohort previous, List<ExpressionMatrixProcessor.SampleResult> results, BitSet filtered,
+                                 GeneIndex geneIndex, int geneMinCells) {
+        PrintStream saved = System.out;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(bytes, true));
+        try {
+            SampleCheckpoint.reportChanges(previous, results, filtered, geneIndex, geneMinCells);
+        } finally {
+            System.setOut(saved);
+        }
+        return bytes.toString();
+    }
+
+    /*
+     * Previous cohort S1, S2, S3 with GeneB filtered. Now S1 is restored,
+     * S2 reprocessed, S3 gone and S4 new; GeneB is kept, GeneC filtered and
+     * GeneD new. S1 keeps GeneB and GeneC, so it is regenerated; S5, with
+     * neither, is not.
+     */
+    @Test
+    public void reportChangesDiffsCohorts() {
+        SampleCheckpoint.Cohort previous = new SampleCheckpoint.Cohort();
+        previous.geneMinCells = 5;
+        previous.samples.addAll(Arrays.asList("S1", "S2", "S3", "S5"));
+        previous.geneCounts.put("GeneA", 10);
+        previous.geneCounts.put("GeneB", 3);
+        previous.geneCounts.put("GeneC", 7);
+        previous.filteredGenes.add("GeneB");
+
+        GeneIndex geneIndex = new GeneIndex();
+        List<ExpressionMatrixProcessor.SampleResult> results = Arrays.asList(
+                sample("S1", true, geneIndex, "GeneA", "GeneB", "GeneC"),
+                sample("S2", false, geneIndex, "GeneA", "GeneB", "GeneC"),
+                sample("S4", false, geneIndex, "GeneA", "GeneB", "GeneC", "GeneD"),
+                sample("S5", true, geneIndex, "GeneA"));
+        BitSet filtered = new BitSet();
+        filtered.set(geneIndex.intern("GeneC"));
+
+        String log = report(previous, results, filtered, geneIndex, 8);
+        assertTrue(log.contains("1 added (S4), 1 reprocessed (S2), 2 unchanged, 1 removed (S3)"), log);
+        assertTrue(log.contains("S3 is no longer in the input directory"), log);
+        assertTrue(log.contains("1 genes newly filtered, 1 no longer filtered, 1 not seen before (--gene-min-cells was 5)"), log);
+        assertTrue(log.contains("S1: 2 retained genes changed"), log);
+        assertFalse(log.contains("S5:"), log);
+        assertTrue(log.contains("Transposed outputs to regenerate: 3 of 4 samples (S4, S2, S1)"), log);
+    }
+
+    @Test
+    public void cohortRoundTrip() throws IOException {
+        GeneIndex geneIndex = new GeneIndex();
+        List<ExpressionMatrixProcessor.SampleResult> results = Arrays.asList(
+                sample("S1", false, geneIndex, "GeneA", "GeneB"), sample("S2", false, geneIndex, "GeneB", "GeneC"));
+        int[] order = {geneIndex.intern("GeneA"), geneIndex.intern("GeneB"), geneIndex.intern("GeneC")};
+        int[] counts = new int[geneIndex.size()];
+        counts[order[0]] = 4;
+        counts[order[1]] = 9;
+        counts[order[2]] = 2;
+        BitSet filtered = new BitSet();
+        filtered.set(order[2]);
+        SampleCheckpoint.saveCohort(results, order, order.length, counts, filtered, geneIndex, 3);
+
+        SampleCheckpoint.Cohort cohort = SampleCheckpoint.loadCohort();
+        assertNotNull(cohort);
+        assertEquals(3, cohort.geneMinCells);
+        assertEquals(Arrays.asList("S1", "S2"), cohort.samples);
+        assertEquals(Arrays.asList("GeneA", "GeneB", "GeneC"), new ArrayList<>(cohort.geneCounts.keySet()));
+        assertEquals(Arrays.asList(4, 9, 2), new ArrayList<>(cohort.geneCounts.values()));
+        assertEquals(Collections.singleton("GeneC"), cohort.filteredGenes);
+    }
+}
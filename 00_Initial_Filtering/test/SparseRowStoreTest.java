@@ -0,0 +1,98 @@
+// -*- coding: utf-8 -*-
+// package ebbertLab.expressionMatrixProcessor;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/*
+ * Rows added to the store must replay unchanged, in order, whether they stayed
+ * in memory or were spilled, and the store's arrays must stay within its
+ * budget and within the planner's estimate.
+ */
+public class SparseRowStoreTest {
+
+    private static final int COLUMNS = 40;
+
+    @TempDir
+    Path spillDir;
+
+    private static double value(int row, int column) {
+        return (row * 7 + column) % 5 == 0 ? row + column / 4.0 : 0.0;
+    }
+
+    /*
+     * A one-label-column matrix of rows x COLUMNS values.
+     */
+    private static TabDelimitedParser matrix(int rows) throws IOException {
+        StringBuilder text = new StringBuilder("Gene");
+        for (int c = 0; c < COLUMNS; c++) {
+            text.append("\tc").append(c);
+        }
+        text.append('\n');
+        for (int r = 0; r < rows; r++) {
+            text.append("gene").append(r);
+            for (int c = 0; c < COLUMNS; c++) {
+                text.append('\t').append(value(r, c));
+            }
+            text.append('\n');
+        }
+        TabDelimitedParser parser = new TabDelimitedParser(new ByteArrayInputStream(text.toString().getBytes(StandardCharsets.UTF_8)), 1);
+        parser.readHeader();
+        return parser;
+    }
+
+    private static void assertReplays(SparseRowStore store, int rows) throws IOException {
+        double[] expectedSums = new double[COLUMNS];
+        double[] dense = new double[COLUMNS];
+        try (SparseRowStore.RowCursor cursor = store.cursor()) {
+            for (int r = 0; r < rows; r++) {
+                assertTrue(cursor.next(), "row " + r + " missing");
+                assertEquals("gene" + r, cursor.label(0));
+                cursor.toDense(dense);
+                for (int c = 0; c < COLUMNS; c++) {
+                    assertEquals(value(r, c), dense[c], "row " + r + ", column " + c);
+                    expectedSums[c] += value(r, c);
+                }
+            }
+            assertFalse(cursor.next());
+        }
+        assertArrayEquals(expectedSums, store.columnSums());
+    }
+
+    @Test
+    public void spillsInsteadOfGrowingPastBudget() throws IOException {
+        int rows = 3000;
+        long budget = 64 * 1024;
+        try (SparseRowStore store = new SparseRowStore(1, COLUMNS, budget, spillDir.toFile(), "test_");
+             TabDelimitedParser parser = matrix(rows)) {
+            while (parser.next()) {
+                store.addRow(parser);
+                assertTrue(store.allocatedBytes() <= budget, "allocated " + store.allocatedBytes() + " after row " + store.rowCount());
+            }
+            assertTrue(store.hasSpilled());
+            assertReplays(store, rows);
+        }
+    }
+
+    @Test
+    public void allocationStaysWithinPlannedEstimate() throws IOException {
+        for (int rows : new int[] {1, 64, 65, 1000, 5000}) {
+            try (SparseRowStore store = new SparseRowStore(1, COLUMNS, Long.MAX_VALUE, spillDir.toFile(), "test_");
+                 TabDelimitedParser parser = matrix(rows)) {
+                while (parser.next()) {
+                    store.addRow(parser);
+                }
+                assertFalse(store.hasSpilled());
+                long estimate = SparseRowStore.estimatedAllocatedBytes(rows, store.nonzeroCount(), COLUMNS, 1);
+                assertTrue(store.allocatedBytes() <= estimate, rows + " rows: allocated " + store.allocatedBytes() + ", estimated " + estimate);
+                assertReplays(store, rows);
+            }
+        }
+    }
+}
@@ -0,0 +1,178 @@
+// -*- coding: utf-8 -*-
+// package ebbertLab.expressionMatrixProcessor;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import org.junit.jupiter.api.Test;
+
+/*
+ * parseDouble() must return exactly the double Double.parseDouble() returns,
+ * bit for bit, on both sides of the limits of its fast path (mantissas up to
+ * 2^53, at most 22 fraction digits). Rows are then read through next() with
+ * CRLF line endings and lines split across buffer refills.
+ */
+public class TabDelimitedParserTest {
+
+    /*
+     * Parse text placed part way into a larger buffer, since parseDouble()
+     * takes absolute indices.
+     */
+    private static double parse(String text) {
+        byte[] field = text.getBytes(StandardCharsets.US_ASCII);
+        ByteBuffer buffer = ByteBuffer.allocate(field.length + 6);
+        buffer.put("7\t".getBytes(StandardCharsets.US_ASCII)).put(field).put("\t9.5".getBytes(StandardCharsets.US_ASCII));
+        return TabDelimitedParser.parseDouble(buffer, 2, 2 + field.length);
+    }
+
+    private static void assertParsesLikeJdk(String text) {
+        long expected = Double.doubleToRawLongBits(Double.parseDouble(text));
+        assertEquals(expected, Double.doubleToRawLongBits(parse(text)), text);
+    }
+
+    /*
+     * text with a decimal point inserted before its last fractionDigits
+     * digits.
+     */
+    private static String withPoint(String digits, int fractionDigits) {
+        int point = digits.length() - fractionDigits;
+        return digits.substring(0, point) + "." + digits.substring(point);
+    }
+
+    @Test
+    public void typicalValuesMatch() {
+        for (String text : new String[] {"0", "1", "10", "0.0", "1.0", "5.", ".5", "0.01", "1.333333", "2.5", "3.14159",
+                "123456.789", "007", "0.000", "1.10", "+4.25", "99.99"}) {
+            assertParsesLikeJdk(text);
+        }
+        for (int n = 0; n <= 2000; n++) {
+            assertParsesLikeJdk(n + ".000001");
+            assertParsesLikeJdk(n + ".333333");
+            assertParsesLikeJdk(n + ".1");
+            assertParsesLikeJdk("-" + n + ".000001");
+        }
+    }
+
+    @Test
+    public void negativesAndSignedZeroMatch() {
+        for (String text : new String[] {"-0", "-0.0", "-0.000", "+0", "-.0", "-1", "-1.333333", "-0.01", "-123456.789"}) {
+            assertParsesLikeJdk(text);
+        }
+        assertEquals(Double.doubleToRawLongBits(-0.0), Double.doubleToRawLongBits(parse("-0")));
+    }
+
+    /*
+     * Mantissas just below, at and above 2^53 (9007199254740992), with the
+     * point in every position.
+     */
+    @Test
+    public void mantissasAroundTwoToTheFiftyThirdMatch() {
+        long limit = 1L << 53;
+        for (long mantissa = limit - 20; mantissa <= limit + 20; mantissa++) {
+            String digits = Long.toString(mantissa);
+            for (int fractionDigits = 0; fractionDigits <= digits.length(); fractionDigits++) {
+                assertParsesLikeJdk(withPoint(digits, fractionDigits));
+                assertParsesLikeJdk("-" + withPoint(digits, fractionDigits));
+            }
+        }
+        for (String text : new String[] {"9999999999999999", "99999999999999999", "12345678901234567", "1234567890123456.7",
+                "0.12345678901234567", "1.0000000000000001"}) {
+            assertParsesLikeJdk(text);
+        }
+    }
+
+    /*
+     * 10^22 is the largest exact power of ten; 22 fraction digits still take
+     * the fast path, 23 do not.
+     */
+    @Test
+    public void fractionDigitsAroundTwentyTwoMatch() {
+        for (int fractionDigits = 19; fractionDigits <= 25; fractionDigits++) {
+            for (String mantissa : new String[] {"1", "3", "7", "123", "4503599627370497", "9007199254740991", "9007199254740993"}) {
+                StringBuilder digits = new StringBuilder(mantissa);
+                while (digits.length() <= fractionDigits) {
+                    digits.insert(0, '0');
+                }
+                assertParsesLikeJdk(withPoint(digits.toString(), fractionDigits));
+                assertParsesLikeJdk("-" + withPoint(digits.toString(), fractionDigits));
+            }
+        }
+    }
+
+    @Test
+    public void randomDecimalsMatch() {
+        Random random = new Random(3);
+        for (int i = 0; i < 200_000; i++) {
+            long mantissa = random.nextLong() >>> (random.nextInt(40) + 10);     // 14 to 54 bits
+            String digits = Long.toString(mantissa);
+            String text = withPoint(digits, random.nextInt(digits.length() + 1));
+            assertParsesLikeJdk(random.nextBoolean() ? "-" + text : text);
+        }
+    }
+
+    @Test
+    public void otherSyntaxFallsBackToJdk() {
+        for (String text : new String[] {"1e5", "1.5E-3", "-2.5e+10", "NaN", "Infinity", "-Infinity", " 3.5", "4.5 ", "0x1p3", "1d", "2.5f"}) {
+            assertParsesLikeJdk(text);
+        }
+        for (String text : new String[] {"", "-", "+", ".", "1.2.3", "abc", "1,5"}) {
+            assertThrows(NumberFormatException.class, () -> parse(text), "\"" + text + "\"");
+        }
+    }
+
+    /*
+     * CRLF and LF lines, a last line without a terminator, and a buffer small
+     * enough that lines cross refills.
+     */
+    @Test
+    public void rowsWithCrlfMatch() throws IOException {
+        StringBuilder text = new StringBuilder("Gene\tTx\tC1\tC2\tC3\r\n");
+        List<double[]> expected = new ArrayList<>();
+        Random random = new Random(5);
+        for (int r = 0; r < 500; r++) {
+            String[] fields = new String[3];
+            double[] values = new double[3];
+            for (int c = 0; c < 3; c++) {
+                fields[c] = withPoint(Long.toString(random.nextInt(1_000_000_000)), random.nextInt(6));
+                values[c] = Double.parseDouble(fields[c]);
+            }
+            expected.add(values);
+            text.append("G").append(r).append("\tT").append(r).append('\t').append(String.join("\t", fields));
+            if (r < 499) {
+                text.append(r % 2 == 0 ? "\r\n" : "\n");
+            }
+        }
+        byte[] bytes = text.toString().getBytes(StandardCharsets.US_ASCII);
+        try (TabDelimitedParser parser = new TabDelimitedParser(new ByteArrayInputStream(bytes), 2, 1024)) {
+            assertArrayEquals(new String[] {"Gene", "Tx", "C1", "C2", "C3"}, parser.readHeader());
+            for (int r = 0; r < 500; r++) {
+                assertTrue(parser.next(), "row " + r);
+                assertEquals("G" + r + "|T" + r, parser.geneName());
+                assertEquals(3, parser.valueCount());
+                for (int c = 0; c < 3; c++) {
+                    assertEquals(Double.doubleToRawLongBits(expected.get(r)[c]), Double.doubleToRawLongBits(parser.values()[c]), "row " + r);
+                }
+            }
+            assertFalse(parser.next());
+        }
+    }
+
+    /*
+     * An empty value fails like Double.parseDouble(""), with or without a
+     * CR before the line break.
+     */
+    @Test
+    public void emptyValueIsRejected() throws IOException {
+        for (String line : new String[] {"g\t1\t\t2\n", "g\t\t2\r\n", "g\t1\t\r\nh\t2\t3\n"}) {
+            byte[] bytes = ("Gene\tA\tB\n" + line).getBytes(StandardCharsets.US_ASCII);
+            try (TabDelimitedParser parser = new TabDelimitedParser(new ByteArrayInputStream(bytes), 1)) {
+                parser.readHeader();
+                assertThrows(NumberFormatException.class, parser::next, line);
+            }
+        }
+    }
+}